@@ -1,4 +1,90 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 /**
  * TravelApp.java
@@ -28,37 +114,344 @@ public class TravelApp {
         public int getErrNo() { return errNo; }
     }
 
+    // ----- Metrics: per-operation call/error counters and latency histograms -----
+    // Recording is a couple of LongAdder increments and one atomic bucket increment,
+    // so it stays on in production. Read through GET /metrics or JMX (travel:type=Metrics).
+    static final class Metrics {
+        // Calls and errors are always counted. Latency is timed on 1 in `sampleEvery` calls:
+        // two clock reads cost more than an index lookup, so the searches are sampled.
+        enum Op {
+            LOGIN(1), HOTEL_SEARCH(16), VEHICLE_SEARCH(16), ITINERARY_SEARCH(1), BOOK_HOTEL(1), BOOK_VEHICLE(1),
+            BOOK_ALL(1), CANCEL(1), PAYMENT(1), PRICE_PUBLISH(1), CHECKOUT(1);
+
+            final int sampleEvery;
+
+            Op(int sampleEvery) { this.sampleEvery = sampleEvery; }
+        }
+
+        @FunctionalInterface
+        interface Call<T> {
+            T run() throws ApplicationException;
+        }
+
+        static final Metrics GLOBAL = new Metrics();
+
+        private final Timer[] timers = new Timer[Op.values().length];
+        private final ConcurrentHashMap<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+
+        Metrics() {
+            for (Op op : Op.values()) timers[op.ordinal()] = new Timer(this, op);
+        }
+
+        Timer timer(Op op) { return timers[op.ordinal()]; }
+
+        // Counts an error code that is not tied to a timed operation (e.g. admin rejections).
+        void error(int errNo) { errors.computeIfAbsent(errNo, k -> new LongAdder()).increment(); }
+
+        SortedMap<Integer, Long> errorCounts() {
+            SortedMap<Integer, Long> out = new TreeMap<>();
+            errors.forEach((code, n) -> out.put(code, n.sum()));
+            return out;
+        }
+
+        // One line per operation, then one per error code; latencies in microseconds.
+        String render() {
+            StringBuilder sb = new StringBuilder(String.format("%-16s %10s %8s %10s %10s %10s %10s %10s%n",
+                    "op", "calls", "errors", "mean", "p50", "p99", "p999", "max"));
+            for (Timer t : timers) {
+                LatencyHistogram.Snapshot s = t.latency.snapshot();
+                sb.append(String.format("%-16s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n", t.op.name().toLowerCase(),
+                        t.calls.sum(), t.errors.sum(), s.mean() / 1e3, s.percentile(0.50) / 1e3,
+                        s.percentile(0.99) / 1e3, s.percentile(0.999) / 1e3, s.max / 1e3));
+            }
+            errorCounts().forEach((code, n) -> sb.append("error ").append(code).append(' ').append(n).append('\n'));
+            return sb.toString().trim();
+        }
+
+        static final class Timer {
+            private final Metrics owner;
+            final Op op;
+            final LongAdder calls = new LongAdder();
+            final LongAdder errors = new LongAdder();
+            final LatencyHistogram latency = new LatencyHistogram();
+
+            Timer(Metrics owner, Op op) {
+                this.owner = owner;
+                this.op = op;
+            }
+
+            static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+            long start() {
+                if (op.sampleEvery > 1 && ThreadLocalRandom.current().nextInt(op.sampleEvery) != 0) return NOT_SAMPLED;
+                return System.nanoTime();
+            }
+
+            void success(long startNanos) {
+                calls.increment();
+                if (startNanos != NOT_SAMPLED) latency.record(System.nanoTime() - startNanos);
+            }
+
+            void failure(long startNanos, int errNo) {
+                success(startNanos);
+                errors.increment();
+                owner.error(errNo);
+            }
+
+            <T> T time(Call<T> call) throws ApplicationException {
+                long t0 = start();
+                try {
+                    T result = call.run();
+                    success(t0);
+                    return result;
+                } catch (ApplicationException e) {
+                    failure(t0, e.getErrNo());
+                    throw e;
+                }
+            }
+        }
+
+        // Read-only view for JMX: "<op>.calls", "<op>.errors", "<op>.p99Micros", ..., "error.<code>".
+        static final class MBean implements DynamicMBean {
+            private static final String[] STATS = {"calls", "errors", "meanMicros", "p50Micros", "p99Micros", "p999Micros", "maxMicros"};
+            private final Metrics metrics;
+
+            MBean(Metrics metrics) { this.metrics = metrics; }
+
+            static void register(Metrics metrics) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(metrics), new ObjectName("travel:type=Metrics"));
+                } catch (JMException e) {
+                    System.err.println("Metrics not registered with JMX: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public Object getAttribute(String name) throws AttributeNotFoundException {
+                int dot = name.lastIndexOf('.');
+                if (dot > 0) {
+                    String head = name.substring(0, dot), stat = name.substring(dot + 1);
+                    if (head.equals("error")) {
+                        try {
+                            return metrics.errorCounts().getOrDefault(Integer.parseInt(stat), 0L);
+                        } catch (NumberFormatException e) {
+                            throw new AttributeNotFoundException(name);
+                        }
+                    }
+                    for (Timer t : metrics.timers) {
+                        if (!t.op.name().toLowerCase().equals(head)) continue;
+                        LatencyHistogram.Snapshot s = t.latency.snapshot();
+                        switch (stat) {
+                            case "calls": return t.calls.sum();
+                            case "errors": return t.errors.sum();
+                            case "meanMicros": return s.mean() / 1e3;
+                            case "p50Micros": return s.percentile(0.50) / 1e3;
+                            case "p99Micros": return s.percentile(0.99) / 1e3;
+                            case "p999Micros": return s.percentile(0.999) / 1e3;
+                            case "maxMicros": return s.max / 1e3;
+                            default: break;
+                        }
+                    }
+                }
+                throw new AttributeNotFoundException(name);
+            }
+
+            @Override
+            public AttributeList getAttributes(String[] names) {
+                AttributeList out = new AttributeList();
+                for (String n : names) {
+                    try {
+                        out.add(new Attribute(n, getAttribute(n)));
+                    } catch (AttributeNotFoundException ignored) {
+                        // JMX convention: unknown names are left out.
+                    }
+                }
+                return out;
+            }
+
+            @Override
+            public MBeanInfo getMBeanInfo() {
+                List<MBeanAttributeInfo> attrs = new ArrayList<>();
+                for (Timer t : metrics.timers) {
+                    for (String stat : STATS) {
+                        String type = stat.endsWith("Micros") ? "double" : "long";
+                        attrs.add(new MBeanAttributeInfo(t.op.name().toLowerCase() + "." + stat, type, stat, true, false, false));
+                    }
+                }
+                for (Integer code : metrics.errorCounts().keySet()) {
+                    attrs.add(new MBeanAttributeInfo("error." + code, "long", "occurrences of error " + code, true, false, false));
+                }
+                return new MBeanInfo(Metrics.class.getName(), "Travel booking operation metrics",
+                        attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+            }
+
+            @Override
+            public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+                throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+            }
+
+            @Override
+            public AttributeList setAttributes(AttributeList attributes) { return new AttributeList(); }
+
+            @Override
+            public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+                throw new ReflectionException(new NoSuchMethodException(action));
+            }
+        }
+    }
+
+    // ----- Latency histogram: log-linear buckets, lock-free recording -----
+    // Each power of two is split into 2^SUB_BITS linear sub-buckets, so any recorded
+    // value is reported within 1/16 (6.25%) of its true value, from 1ns up to Long.MAX_VALUE,
+    // in a fixed 960-slot array.
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+        // Values below SUB get a bucket each; then SUB buckets for each remaining bit of a positive long.
+        static final int BUCKETS = SUB + (63 - SUB_BITS) * SUB;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts.incrementAndGet(bucket(nanos));
+            total.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        static int bucket(long v) {
+            if (v < SUB) return (int) v;
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return (shift + 1) * SUB + (int) ((v >>> shift) & (SUB - 1));
+        }
+
+        // Largest value that lands in bucket b.
+        static long upperBound(int b) {
+            if (b < SUB) return b;
+            int shift = b / SUB - 1;
+            long lower = (long) (SUB + b % SUB) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        // Counts are copied bucket by bucket while writers keep going, so a snapshot
+        // is consistent to within the calls that landed during the copy.
+        Snapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) n += copy[i] = counts.get(i);
+            return new Snapshot(copy, n, sum.sum(), max.get());
+        }
+
+        static final class Snapshot {
+            private final long[] counts;
+            final long count;
+            final long sum;
+            final long max;
+
+            Snapshot(long[] counts, long count, long sum, long max) {
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+            }
+
+            double mean() { return count == 0 ? 0 : (double) sum / count; }
+
+            // Upper edge of the bucket holding the q-th value, capped at the observed max.
+            long percentile(double q) {
+                if (count == 0) return 0;
+                long rank = Math.max(1, (long) Math.ceil(q * count));
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) return Math.min(upperBound(i), max);
+                }
+                return max;
+            }
+        }
+    }
+
+    // ----- Credentials: salted PBKDF2 hashes, plaintext is never stored -----
+    static final class Credential {
+        static final int DEFAULT_ITERATIONS = 10_000;
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        private final byte[] salt;
+        private final byte[] hash;
+        private final int iterations;
+
+        private Credential(byte[] salt, byte[] hash, int iterations) {
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+        }
+
+        static Credential of(String password) {
+            byte[] salt = new byte[16];
+            RANDOM.nextBytes(salt);
+            return new Credential(salt, derive(password, salt, DEFAULT_ITERATIONS), DEFAULT_ITERATIONS);
+        }
+
+        boolean matches(String password) {
+            return MessageDigest.isEqual(hash, derive(password, salt, iterations));
+        }
+
+        private static byte[] derive(String password, byte[] salt, int iterations) {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("PBKDF2WithHmacSHA256 unavailable", e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+    }
+
     // ----- Users -----
+    enum Role { CUSTOMER, ADMIN }
+
     static abstract class User {
         protected int userId;
         protected String name;
         protected String email;
-        protected String password;
+        protected volatile Credential credential;
         protected String location;
 
         public User(int userId, String name, String email, String location, String password) {
+            this(userId, name, email, location, Credential.of(password));
+        }
+
+        public User(int userId, String name, String email, String location, Credential credential) {
             this.userId = userId;
             this.name = name;
             this.email = email;
             this.location = location;
-            this.password = password;
+            this.credential = credential;
         }
 
         public int getUserId() { return userId; }
-        public String getPassword() { return password; }
+        public String getEmail() { return email; }
+        public boolean checkPassword(String pw) { return credential.matches(pw); }
+        public void setPassword(String pw) { this.credential = Credential.of(pw); }
+        public abstract Role getRole();
         public abstract void printDetails();
         public abstract void updateProfile(Scanner sc);
-
-        public void generateReceipt() {
-            System.out.println("----- Receipt -----");
-            System.out.printf("Name: %s\nEmail: %s\nLocation: %s\n", name, email, location);
-        }
     }
 
     static class Customer extends User {
         public Customer(int id, String name, String email, String location, String password) {
             super(id, name, email, location, password);
         }
+        public Customer(int id, String name, String email, String location, Credential credential) {
+            super(id, name, email, location, credential);
+        }
+        @Override
+        public Role getRole() { return Role.CUSTOMER; }
         @Override
         public void printDetails() {
             System.out.printf("[Customer] %d : %s : %s : %s\n", userId, name, email, location);
@@ -70,7 +463,7 @@ public class TravelApp {
             if (ch.equalsIgnoreCase("y")) {
                 System.out.print("Enter new password: ");
                 String p = sc.nextLine().trim();
-                this.password = p;
+                setPassword(p);
                 System.out.println("Password updated.");
             }
         }
@@ -81,6 +474,8 @@ public class TravelApp {
             super(id, name, email, location, password);
         }
         @Override
+        public Role getRole() { return Role.ADMIN; }
+        @Override
         public void printDetails() {
             System.out.printf("[Admin] %d : %s : %s : %s\n", userId, name, email, location);
         }
@@ -91,15 +486,243 @@ public class TravelApp {
             if (ch.equalsIgnoreCase("y")) {
                 System.out.print("Enter new password: ");
                 String p = sc.nextLine().trim();
-                this.password = p;
+                setPassword(p);
                 System.out.println("Password updated.");
             }
         }
     }
 
+    // ----- User directory: id and email indexes, bounded password verification -----
+    // Lookups and role checks are single hash probes. Password checks are deliberately
+    // slow (PBKDF2), so they run on a small fixed pool with a bounded queue: a login
+    // burst gets "try again" instead of taking every core from the booking threads.
+    static class UserDirectory {
+        // Verified against when the id is unknown, so a miss costs as much as a hit.
+        private static final Credential DUMMY = Credential.of("dummy-password");
+
+        private final ConcurrentHashMap<Integer, User> byId = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, User> byEmail = new ConcurrentHashMap<>();
+        private final ThreadPoolExecutor verifiers;
+
+        public UserDirectory() {
+            this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 1024);
+        }
+
+        public UserDirectory(int verifierThreads, int queueCapacity) {
+            AtomicInteger n = new AtomicInteger();
+            verifiers = new ThreadPoolExecutor(verifierThreads, verifierThreads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), r -> {
+                        Thread t = new Thread(r, "login-verifier-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+
+        // False when the id is already taken.
+        public boolean add(User u) {
+            if (byId.putIfAbsent(u.userId, u) != null) return false;
+            if (u.email != null && !u.email.isEmpty()) byEmail.putIfAbsent(normalizeKey(u.email), u);
+            return true;
+        }
+
+        public User find(int userId) { return byId.get(userId); }
+        public User findByEmail(String email) { return byEmail.get(normalizeKey(email)); }
+
+        public boolean isAdmin(int userId) {
+            User u = byId.get(userId);
+            return u != null && u.getRole() == Role.ADMIN;
+        }
+
+        public Collection<User> all() { return Collections.unmodifiableCollection(byId.values()); }
+        public int size() { return byId.size(); }
+
+        public CompletableFuture<Boolean> verifyAsync(int userId, String password) {
+            User u = byId.get(userId);
+            try {
+                return CompletableFuture.supplyAsync(() -> {
+                    if (u != null) return u.checkPassword(password);
+                    DUMMY.matches(password);
+                    return false;
+                }, verifiers);
+            } catch (RejectedExecutionException e) {
+                CompletableFuture<Boolean> busy = new CompletableFuture<>();
+                busy.completeExceptionally(new ApplicationException(3002, "Too many login attempts, try again."));
+                return busy;
+            }
+        }
+
+        public boolean verify(int userId, String password) throws ApplicationException {
+            try {
+                return verifyAsync(userId, password).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApplicationException(3002, "Login interrupted.");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ApplicationException) throw (ApplicationException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    // ----- Sessions: token -> resolved user and role, with TTL/idle eviction -----
+    // Reads are a ConcurrentHashMap get plus two clock comparisons; no locks. An
+    // expired session is removed by whoever sees it first. The size bound is
+    // enforced on create: a small random sample is drawn from a dense array of the
+    // live sessions, its expired members are dropped and, if that freed nothing, the
+    // idlest of it is evicted (approximate LRU, O(sample) rather than O(n)).
+    static class SessionCache {
+        static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(8);
+        static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+        static final int DEFAULT_MAX_SESSIONS = 100_000;
+        private static final int EVICTION_SAMPLE = 16;
+        // lastAccess is only rewritten when it is this stale, to keep hot sessions' cache lines quiet.
+        private static final long TOUCH_GRANULARITY_MILLIS = 1000;
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        static final class Session {
+            final String token;
+            final int userId;
+            final User user;
+            final Role role;
+            final long createdAt;
+            volatile long lastAccess;
+            // Index in SessionCache.slots, -1 once unlinked; guarded by the cache's slots lock.
+            int slot = -1;
+
+            Session(String token, User user, long now) {
+                this.token = token;
+                this.userId = user.userId;
+                this.user = user;
+                this.role = user.getRole();
+                this.createdAt = now;
+                this.lastAccess = now;
+            }
+
+            boolean isAdmin() { return role == Role.ADMIN; }
+
+            // Admin rejections are not timed operations, so they are counted here.
+            void requireAdmin(int errNo) throws ApplicationException {
+                if (isAdmin()) return;
+                Metrics.GLOBAL.error(errNo);
+                throw new ApplicationException(errNo, "User is not an admin");
+            }
+        }
+
+        private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+        // Every live session once, in no order, for O(1) random sampling. Guarded by slotsLock;
+        // only create and removal take it, never get.
+        private final Object slotsLock = new Object();
+        private Session[] slots = new Session[64];
+        private int live;
+        private final long ttlMillis;
+        private final long idleMillis;
+        private final int maxSessions;
+        private final LongSupplier clock;
+
+        public SessionCache() {
+            this(DEFAULT_TTL_MILLIS, DEFAULT_IDLE_MILLIS, DEFAULT_MAX_SESSIONS, System::currentTimeMillis);
+        }
+
+        public SessionCache(long ttlMillis, long idleMillis, int maxSessions, LongSupplier clock) {
+            this.ttlMillis = ttlMillis;
+            this.idleMillis = idleMillis;
+            this.maxSessions = maxSessions;
+            this.clock = clock;
+        }
+
+        public Session create(User user) {
+            long now = clock.getAsLong();
+            byte[] raw = new byte[24];
+            RANDOM.nextBytes(raw);
+            Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(raw), user, now);
+            synchronized (slotsLock) {
+                while (live >= maxSessions) evictFromSample(now);
+                if (live == slots.length) slots = Arrays.copyOf(slots, live * 2);
+                session.slot = live;
+                slots[live++] = session;
+                sessions.put(session.token, session);
+            }
+            return session;
+        }
+
+        // The live session for `token`, or null if unknown or expired.
+        public Session get(String token) {
+            if (token == null) return null;
+            Session s = sessions.get(token);
+            if (s == null) return null;
+            long now = clock.getAsLong();
+            if (expired(s, now)) {
+                remove(s);
+                return null;
+            }
+            if (now - s.lastAccess > TOUCH_GRANULARITY_MILLIS) s.lastAccess = now;
+            return s;
+        }
+
+        public void invalidate(String token) {
+            Session s = token == null ? null : sessions.get(token);
+            if (s != null) remove(s);
+        }
+
+        private boolean remove(Session s) {
+            if (!sessions.remove(s.token, s)) return false;
+            synchronized (slotsLock) {
+                unlink(s);
+            }
+            return true;
+        }
+
+        // Swap-removes s from slots; a no-op if it is already gone. Caller holds slotsLock.
+        private void unlink(Session s) {
+            if (s.slot < 0) return;
+            Session last = slots[--live];
+            slots[s.slot] = last;
+            last.slot = s.slot;
+            slots[live] = null;
+            s.slot = -1;
+        }
+
+        public int size() { return sessions.size(); }
+
+        private boolean expired(Session s, long now) {
+            return now - s.createdAt > ttlMillis || now - s.lastAccess > idleMillis;
+        }
+
+        // Removes every expired session; returns how many went.
+        public int sweep() {
+            long now = clock.getAsLong();
+            int removed = 0;
+            for (Session s : sessions.values()) {
+                if (expired(s, now) && remove(s)) removed++;
+            }
+            return removed;
+        }
+
+        // Drops the expired members of a random sample, or else its idlest one. Caller holds slotsLock.
+        private void evictFromSample(long now) {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            Session idlest = null;
+            int before = live;
+            for (int i = 0; i < EVICTION_SAMPLE && live > 0; i++) {
+                Session s = slots[rnd.nextInt(live)];
+                if (expired(s, now)) {
+                    sessions.remove(s.token, s);
+                    unlink(s);
+                } else if (idlest == null || s.lastAccess < idlest.lastAccess) {
+                    idlest = s;
+                }
+            }
+            if (live < before || idlest == null || idlest.slot < 0) return;
+            sessions.remove(idlest.token, idlest);
+            unlink(idlest);
+        }
+    }
+
     // ----- Register/Login helper -----
     static class Register {
-        public void signUp(List<User> users, Scanner sc, int assignedId, String password) {
+        private static final Metrics.Timer LOGIN = Metrics.GLOBAL.timer(Metrics.Op.LOGIN);
+
+        public void signUp(UserDirectory users, Scanner sc, int assignedId, String password) {
             System.out.println("=== Sign Up ===");
             System.out.print("Enter name: ");
             String name = sc.nextLine().trim();
@@ -108,11 +731,14 @@ public class TravelApp {
             System.out.print("Enter location: ");
             String location = sc.nextLine().trim();
             Customer c = new Customer(assignedId, name, email, location, password);
-            users.add(c);
+            if (!users.add(c)) {
+                System.out.println("UserId " + assignedId + " is already taken.");
+                return;
+            }
             System.out.println("Signed up successfully with userId: " + assignedId);
         }
 
-        public int login(List<User> users, Scanner sc) {
+        public int login(UserDirectory users, Scanner sc) {
             System.out.println("=== Login ===");
             System.out.print("Enter userId: ");
             String idStr = sc.nextLine().trim();
@@ -123,264 +749,5646 @@ public class TravelApp {
                 System.out.println("Invalid id format.");
                 return -1;
             }
-            System.out.print("Enter password: ");
-            String pw = sc.nextLine().trim();
-            for (User u : users) {
-                if (u.getUserId() == id && u.getPassword().equals(pw)) {
-                    System.out.println("Login successful.");
-                    return id;
+            System.out.print("Enter password: ");
+            String pw = sc.nextLine().trim();
+            try {
+                if (authenticate(users, id, pw) == id) {
+                    System.out.println("Login successful.");
+                    return id;
+                }
+            } catch (ApplicationException ae) {
+                System.out.println(ae.getMessage());
+                return -1;
+            }
+            if (users.find(id) != null) {
+                System.out.println("Wrong password.");
+                return -1;
+            }
+            System.out.println("No such user. Do you want to sign up with this id? (y/n)");
+            String ch = sc.nextLine().trim();
+            if (ch.equalsIgnoreCase("y")) {
+                signUp(users, sc, id, pw);
+                return users.find(id) != null ? id : -1;
+            }
+            return -1;
+        }
+
+        // Non-interactive check used by login and by the network front end.
+        public int authenticate(UserDirectory users, int id, String pw) throws ApplicationException {
+            long t0 = LOGIN.start();
+            boolean ok;
+            try {
+                ok = users.verify(id, pw);
+            } catch (ApplicationException e) {
+                LOGIN.failure(t0, e.getErrNo());
+                throw e;
+            }
+            if (!ok) {
+                LOGIN.failure(t0, 3001);
+                return -1;
+            }
+            LOGIN.success(t0);
+            return id;
+        }
+    }
+
+    // ----- Primitive int-keyed map (open addressing, no boxing) -----
+    static class IntHashMap<V> {
+        private static final int FREE = Integer.MIN_VALUE;
+        private int[] keys;
+        private Object[] values;
+        private int size;
+        private int mask;
+
+        public IntHashMap() { this(16); }
+
+        public IntHashMap(int expected) {
+            int cap = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+            allocate(cap);
+        }
+
+        private void allocate(int cap) {
+            keys = new int[cap];
+            Arrays.fill(keys, FREE);
+            values = new Object[cap];
+            mask = cap - 1;
+        }
+
+        static int mix(int k) {
+            int h = k * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private int slotOf(int key) {
+            int i = mix(key) & mask;
+            while (keys[i] != FREE && keys[i] != key) i = (i + 1) & mask;
+            return i;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(int key) {
+            if (key == FREE) return null;
+            int i = slotOf(key);
+            return keys[i] == FREE ? null : (V) values[i];
+        }
+
+        public boolean containsKey(int key) { return get(key) != null; }
+
+        @SuppressWarnings("unchecked")
+        public V put(int key, V value) {
+            if (key == FREE) throw new IllegalArgumentException("Reserved key: " + key);
+            if (value == null) throw new NullPointerException("null values are not supported");
+            int i = slotOf(key);
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size * 2 > keys.length) rehash();
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V remove(int key) {
+            if (key == FREE) return null;
+            int i = slotOf(key);
+            if (keys[i] == FREE) return null;
+            V old = (V) values[i];
+            // Backward-shift deletion keeps probe chains intact without tombstones.
+            int gap = i;
+            int j = (i + 1) & mask;
+            while (keys[j] != FREE) {
+                int home = mix(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+                j = (j + 1) & mask;
+            }
+            keys[gap] = FREE;
+            values[gap] = null;
+            size--;
+            return old;
+        }
+
+        public int size() { return size; }
+
+        @SuppressWarnings("unchecked")
+        public void forEachValue(java.util.function.Consumer<? super V> action) {
+            for (int i = 0; i < keys.length; i++) if (keys[i] != FREE) action.accept((V) values[i]);
+        }
+
+        private void rehash() {
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            allocate(oldKeys.length << 1);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) {
+                    int j = slotOf(oldKeys[i]);
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    // Case-folds free-text keys (locations, cities) the same way everywhere they are indexed.
+    static String normalizeKey(String s) {
+        return s == null ? "" : s.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // ----- Hotel -----
+    static class Hotel {
+        int hotelId;
+        String name;
+        String location;
+        static final int DEFAULT_ROOMS = 20;
+
+        int rating;
+        volatile double pricePerRoom;
+        int totalRooms;
+
+        public Hotel(int hotelId, String name, String location, int rating, double price) {
+            this(hotelId, name, location, rating, price, DEFAULT_ROOMS);
+        }
+
+        public Hotel(int hotelId, String name, String location, int rating, double price, int totalRooms) {
+            this.hotelId = hotelId;
+            this.name = name;
+            this.location = location;
+            this.rating = rating;
+            this.pricePerRoom = price;
+            this.totalRooms = totalRooms;
+        }
+
+        public int getHotelId() { return hotelId; }
+        public String getLocation() { return location; }
+        public double getPricePerRoom() { return pricePerRoom; }
+        public int getTotalRooms() { return totalRooms; }
+        public void setPricePerRoom(double p) { this.pricePerRoom = p; }
+    }
+
+    // ----- Hotel catalog: id index + case-folded location index -----
+    // Both indexes hold the same Hotel instances, so a price change through
+    // setPricePerRoom is visible from either side without re-indexing.
+    static class HotelCatalog {
+        private static final Metrics.Timer SEARCH = Metrics.GLOBAL.timer(Metrics.Op.HOTEL_SEARCH);
+
+        private final IntHashMap<Hotel> byId;
+        private final Map<String, List<Hotel>> byLocation = new HashMap<>();
+        private final List<Hotel> all = new ArrayList<>();
+        // {index in all, index in its location list}, so a feed update replaces in place.
+        private final IntHashMap<int[]> positions;
+
+        public HotelCatalog() { this(16); }
+
+        public HotelCatalog(int expectedSize) {
+            this.byId = new IntHashMap<>(expectedSize);
+            this.positions = new IntHashMap<>(expectedSize);
+        }
+
+        public void add(Hotel h) {
+            Hotel previous = byId.put(h.hotelId, h);
+            String key = normalizeKey(h.location);
+            if (previous == null) {
+                List<Hotel> list = byLocation.computeIfAbsent(key, k -> new ArrayList<>());
+                positions.put(h.hotelId, new int[] {all.size(), list.size()});
+                all.add(h);
+                list.add(h);
+                return;
+            }
+            int[] pos = positions.get(h.hotelId);
+            all.set(pos[0], h);
+            if (key.equals(normalizeKey(previous.location))) {
+                byLocation.get(key).set(pos[1], h);
+            } else {
+                unlinkLocation(previous, pos[1]);
+                List<Hotel> list = byLocation.computeIfAbsent(key, k -> new ArrayList<>());
+                pos[1] = list.size();
+                list.add(h);
+            }
+        }
+
+        // Rare, so it is allowed to shift and renumber the hotels after this one.
+        public Hotel remove(int hotelId) {
+            Hotel h = byId.remove(hotelId);
+            if (h == null) return null;
+            int[] pos = positions.remove(hotelId);
+            unlinkLocation(h, pos[1]);
+            all.remove(pos[0]);
+            for (int i = pos[0]; i < all.size(); i++) positions.get(all.get(i).hotelId)[0] = i;
+            return h;
+        }
+
+        private void unlinkLocation(Hotel h, int index) {
+            String key = normalizeKey(h.location);
+            List<Hotel> list = byLocation.get(key);
+            list.remove(index);
+            if (list.isEmpty()) byLocation.remove(key);
+            for (int i = index; i < list.size(); i++) positions.get(list.get(i).hotelId)[1] = i;
+        }
+
+        public Hotel findById(int hotelId) { return byId.get(hotelId); }
+
+        public List<Hotel> findByLocation(String location) {
+            long t0 = SEARCH.start();
+            List<Hotel> list = byLocation.get(normalizeKey(location));
+            SEARCH.success(t0);
+            return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+        }
+
+        public boolean updatePrice(int hotelId, double price) {
+            Hotel h = byId.get(hotelId);
+            if (h == null) return false;
+            h.setPricePerRoom(price);
+            return true;
+        }
+
+        public List<Hotel> all() { return Collections.unmodifiableList(all); }
+        public int size() { return byId.size(); }
+    }
+
+    // ----- Vehicle & Transportation -----
+    static class Vehicle {
+        int vehicleId;
+        String vehicleType;
+        String franchiseName;
+        int seatingCapacity;
+        String from;
+        String to;
+        volatile double price;
+
+        public Vehicle(int id, String type, String franchise, int seats, String from, String to, double price) {
+            this.vehicleId = id;
+            this.vehicleType = type;
+            this.franchiseName = franchise;
+            this.seatingCapacity = seats;
+            this.from = from;
+            this.to = to;
+            this.price = price;
+        }
+
+    }
+
+    static class Transportation {
+        String source;
+        String destination;
+        List<Vehicle> vehicles = new ArrayList<>();
+
+        public Transportation(String s, String d) {
+            this.source = s;
+            this.destination = d;
+        }
+
+        public void addVehicle(Vehicle v) { vehicles.add(v); }
+    }
+
+    // ----- Column view of the hotel catalog for filtered searches -----
+    // Parallel primitive arrays instead of a List<Hotel>, so a rating/price filter
+    // walks a few contiguous arrays and never touches Hotel objects. There is one set
+    // of arrays per location code, sorted by price. A query for one location is then
+    // a single forward scan over its group, already cheapest first, and it stops at
+    // the first row over the price limit.
+    //
+    // The view is immutable: price changes produce a patched copy (withPrices) that
+    // shares every group it did not touch, and catalogue changes a full rebuild (see
+    // BookingService.searchColumns).
+    static final class HotelColumns {
+        // Indexed by location code, then row within the group.
+        final int[][] ids;
+        final int[][] ratings;
+        final double[][] prices;
+        private final Map<String, Integer> codeOf;
+        private final int size;
+
+        private HotelColumns(int[][] ids, int[][] ratings, double[][] prices, Map<String, Integer> codeOf, int size) {
+            this.ids = ids;
+            this.ratings = ratings;
+            this.prices = prices;
+            this.codeOf = codeOf;
+            this.size = size;
+        }
+
+        public static HotelColumns of(HotelCatalog catalog) {
+            List<Hotel> all = catalog.all();
+            int n = all.size();
+            Map<String, Integer> codeOf = new HashMap<>();
+            int[] code = new int[n];
+            for (int i = 0; i < n; i++) {
+                code[i] = codeOf.computeIfAbsent(normalizeKey(all.get(i).location), k -> codeOf.size());
+            }
+            // Counting sort by location code, then price order inside each group.
+            int groups = codeOf.size();
+            int[] groupStart = new int[groups + 1];
+            for (int c : code) groupStart[c + 1]++;
+            for (int g = 0; g < groups; g++) groupStart[g + 1] += groupStart[g];
+            int[] order = new int[n];
+            int[] fill = Arrays.copyOf(groupStart, groups);
+            for (int i = 0; i < n; i++) order[fill[code[i]]++] = i;
+            double[] srcPrices = new double[n];
+            for (int i = 0; i < n; i++) srcPrices[i] = all.get(i).pricePerRoom;
+            for (int g = 0; g < groups; g++) sortByPrice(order, groupStart[g], groupStart[g + 1], srcPrices);
+
+            int[][] ids = new int[groups][], ratings = new int[groups][];
+            double[][] prices = new double[groups][];
+            for (int g = 0; g < groups; g++) {
+                int from = groupStart[g], len = groupStart[g + 1] - from;
+                ids[g] = new int[len];
+                ratings[g] = new int[len];
+                prices[g] = new double[len];
+                for (int row = 0; row < len; row++) {
+                    Hotel h = all.get(order[from + row]);
+                    ids[g][row] = h.hotelId;
+                    ratings[g][row] = h.rating;
+                    prices[g][row] = srcPrices[order[from + row]];
+                }
+            }
+            return new HotelColumns(ids, ratings, prices, codeOf, n);
+        }
+
+        public int size() { return size; }
+
+        // Copy with the given hotels' current prices, each row slid back into price order
+        // within its location group. Only the touched groups are copied. Null if a rebuild
+        // is the better deal: a large batch, or a hotel this view has never seen.
+        HotelColumns withPrices(List<Hotel> changed) {
+            if (changed.size() > size / 16 + 1) return null;
+            int[][] ids = this.ids.clone(), ratings = this.ratings.clone();
+            double[][] prices = this.prices.clone();
+            for (Hotel h : changed) {
+                Integer code = codeOf.get(normalizeKey(h.location));
+                if (code == null) return null;
+                int g = code;
+                if (prices[g] == this.prices[g]) {
+                    ids[g] = ids[g].clone();
+                    ratings[g] = ratings[g].clone();
+                    prices[g] = prices[g].clone();
+                }
+                int[] gi = ids[g], gr = ratings[g];
+                double[] gp = prices[g];
+                int row = 0;
+                while (row < gi.length && gi[row] != h.hotelId) row++;
+                if (row == gi.length) return null;
+                double p = h.pricePerRoom;
+                gp[row] = p;
+                while (row > 0 && gp[row - 1] > p) swapRows(gi, gr, gp, row, --row);
+                while (row + 1 < gi.length && gp[row + 1] < p) swapRows(gi, gr, gp, row, ++row);
+            }
+            return new HotelColumns(ids, ratings, prices, codeOf, size);
+        }
+
+        private static void swapRows(int[] ids, int[] ratings, double[] prices, int a, int b) {
+            int id = ids[a]; ids[a] = ids[b]; ids[b] = id;
+            int r = ratings[a]; ratings[a] = ratings[b]; ratings[b] = r;
+            double p = prices[a]; prices[a] = prices[b]; prices[b] = p;
+        }
+
+        // Ids of hotels in `location` with rating >= minRating and price <= maxPrice,
+        // cheapest first, at most `limit` of them.
+        public int[] query(String location, int minRating, double maxPrice, int limit) {
+            return query(location, minRating, maxPrice, limit, null);
+        }
+
+        // As above, keeping only ids that `keep` accepts (null keeps all). The predicate runs
+        // after the column filters, so it only sees rows that would otherwise be returned.
+        public int[] query(String location, int minRating, double maxPrice, int limit, IntPredicate keep) {
+            Integer code = codeOf.get(normalizeKey(location));
+            if (code == null || limit <= 0) return new int[0];
+            int[] gi = ids[code], gr = ratings[code];
+            double[] gp = prices[code];
+            int[] out = new int[Math.min(limit, gi.length)];
+            int n = 0;
+            for (int row = 0; row < gi.length && n < out.length; row++) {
+                if (gp[row] > maxPrice) break;
+                if (gr[row] >= minRating && (keep == null || keep.test(gi[row]))) out[n++] = gi[row];
+            }
+            return n == out.length ? out : Arrays.copyOf(out, n);
+        }
+
+        // Same filter across every location, cheapest first. Each group is already in price
+        // order, so this merges the groups' heads through a min-heap of group codes instead
+        // of collecting and sorting every match: scratch is one slot per group plus the
+        // result, and the walk stops after `limit` rows.
+        public int[] queryAll(int minRating, double maxPrice, int limit) {
+            if (limit <= 0) return new int[0];
+            int[] next = new int[ids.length];
+            int[] heap = new int[ids.length];
+            int h = 0;
+            for (int g = 0; g < ids.length; g++) if (seek(g, next, minRating, maxPrice)) heap[h++] = g;
+            for (int i = h / 2 - 1; i >= 0; i--) siftDown(heap, h, i, next);
+            int[] out = new int[Math.min(limit, size)];
+            int n = 0;
+            while (h > 0 && n < out.length) {
+                int g = heap[0];
+                out[n++] = ids[g][next[g]++];
+                if (!seek(g, next, minRating, maxPrice)) heap[0] = heap[--h];
+                if (h > 0) siftDown(heap, h, 0, next);
+            }
+            return n == out.length ? out : Arrays.copyOf(out, n);
+        }
+
+        // Moves next[g] to group g's next row passing the filters; false once there is none.
+        private boolean seek(int g, int[] next, int minRating, double maxPrice) {
+            int[] gr = ratings[g];
+            double[] gp = prices[g];
+            for (int row = next[g]; row < gp.length && gp[row] <= maxPrice; row++) {
+                if (gr[row] >= minRating) {
+                    next[g] = row;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void siftDown(int[] heap, int h, int i, int[] next) {
+            int g = heap[i];
+            double p = prices[g][next[g]];
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= h) break;
+                if (c + 1 < h && prices[heap[c + 1]][next[heap[c + 1]]] < prices[heap[c]][next[heap[c]]]) c++;
+                if (prices[heap[c]][next[heap[c]]] >= p) break;
+                heap[i] = heap[c];
+                i = c;
+            }
+            heap[i] = g;
+        }
+
+        // Sorts rows[from, to) by prices[row] ascending: quicksort with insertion sort for short runs.
+        static void sortByPrice(int[] rows, int from, int to, double[] prices) {
+            while (to - from > 16) {
+                int mid = (from + to) >>> 1;
+                double pivot = median(prices[rows[from]], prices[rows[mid]], prices[rows[to - 1]]);
+                int i = from, j = to - 1;
+                while (i <= j) {
+                    while (prices[rows[i]] < pivot) i++;
+                    while (prices[rows[j]] > pivot) j--;
+                    if (i <= j) {
+                        int t = rows[i]; rows[i] = rows[j]; rows[j] = t;
+                        i++;
+                        j--;
+                    }
+                }
+                // Recurse into the smaller side to bound stack depth.
+                if (j - from < to - i) {
+                    sortByPrice(rows, from, j + 1, prices);
+                    from = i;
+                } else {
+                    sortByPrice(rows, i, to, prices);
+                    to = j + 1;
+                }
+            }
+            for (int i = from + 1; i < to; i++) {
+                int r = rows[i];
+                double p = prices[r];
+                int j = i - 1;
+                while (j >= from && prices[rows[j]] > p) {
+                    rows[j + 1] = rows[j];
+                    j--;
+                }
+                rows[j + 1] = r;
+            }
+        }
+
+        private static double median(double a, double b, double c) {
+            return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+        }
+    }
+
+    // ----- Search result cache: bounded, W-TinyLFU admission, tag invalidation -----
+    // New entries land in a small LRU window. When the window overflows, its oldest
+    // entry only displaces the main area's LRU victim if a frequency sketch says it
+    // has been asked for more often, so a burst of one-off searches cannot flush the
+    // popular destinations. Each entry carries a tag (e.g. a normalized location) so
+    // writers can drop exactly the entries a change can affect.
+    //
+    // A hit is a ConcurrentHashMap lookup and takes no lock. It leaves its key in a
+    // per-thread-stripe read buffer instead of touching the policy; whoever fills a
+    // stripe replays the buffers into the sketch and LRU order if the lock is free.
+    // The buffers are lossy: when a stripe is full, further hits skip recording until
+    // it drains, which only blurs popularity a little.
+    static final class SearchCache<K, V> {
+        @FunctionalInterface
+        interface Affected<K, V> {
+            boolean test(K key, V value);
+        }
+
+        private static final class Entry<V> {
+            final String tag;
+            final V value;
+
+            Entry(String tag, V value) {
+                this.tag = tag;
+                this.value = value;
+            }
+        }
+
+        private static final int READ_BUFFER = 16;
+
+        // Live entries; written only under `lock`, read without it.
+        private final ConcurrentHashMap<K, Entry<V>> data = new ConcurrentHashMap<>();
+        private final int stripeMask;
+        private final AtomicReferenceArray<Object> reads;
+        private final AtomicIntegerArray readCounts;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        // Bumped by every invalidation; a load that straddles one is not cached.
+        private volatile long version;
+
+        // Guards everything below.
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int windowSize;
+        private final int mainSize;
+        private final LinkedHashMap<K, Entry<V>> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<K, Entry<V>> main = new LinkedHashMap<>(16, 0.75f, true);
+        // Tag -> its live entries; invalidation reads values here so it never disturbs LRU order.
+        private final Map<String, Map<K, V>> byTag = new HashMap<>();
+        private final FrequencySketch sketch;
+        private long evictions, rejections, invalidations;
+
+        SearchCache(int maximumSize) {
+            if (maximumSize < 2) throw new IllegalArgumentException("maximumSize must be at least 2");
+            this.windowSize = Math.max(1, maximumSize / 100);
+            this.mainSize = maximumSize - windowSize;
+            this.sketch = new FrequencySketch(maximumSize);
+            int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+            this.stripeMask = stripes - 1;
+            this.reads = new AtomicReferenceArray<>(stripes * READ_BUFFER);
+            this.readCounts = new AtomicIntegerArray(stripes);
+        }
+
+        // Cached value for `key`, or `loader`'s result, which is cached under `tag`.
+        V get(K key, String tag, Function<K, V> loader) {
+            Entry<V> e = data.get(key);
+            if (e != null) {
+                hits.increment();
+                recordRead(key);
+                return e.value;
+            }
+            misses.increment();
+            long seen = version;
+            V value = loader.apply(key);
+            lock.lock();
+            try {
+                drainReads();
+                sketch.increment(key.hashCode());
+                if (version == seen && !data.containsKey(key)) {
+                    Entry<V> fresh = new Entry<>(tag, value);
+                    data.put(key, fresh);
+                    window.put(key, fresh);
+                    byTag.computeIfAbsent(tag, t -> new HashMap<>()).put(key, value);
+                    if (window.size() > windowSize) promoteEldest();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return value;
+        }
+
+        private void recordRead(K key) {
+            // getId() is deprecated from JDK 19 in favour of threadId(), which the JDK 17
+            // target does not have; only the low bits are used, to pick a stripe.
+            int stripe = (int) Thread.currentThread().getId() & stripeMask;
+            int n = readCounts.getAndIncrement(stripe);
+            if (n < READ_BUFFER) reads.lazySet(stripe * READ_BUFFER + n, key);
+            if (n >= READ_BUFFER - 1 && lock.tryLock()) {
+                try {
+                    drainReads();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        // Replays buffered hits into the sketch and LRU order. Caller holds `lock`.
+        @SuppressWarnings("unchecked")
+        private void drainReads() {
+            for (int s = 0; s <= stripeMask; s++) {
+                int n = Math.min(readCounts.get(s), READ_BUFFER);
+                if (n == 0) continue;
+                for (int i = 0; i < n; i++) {
+                    K key = (K) reads.getAndSet(s * READ_BUFFER + i, null);
+                    if (key == null) continue;
+                    sketch.increment(key.hashCode());
+                    if (window.get(key) == null) main.get(key); // access order: moves it to the MRU end
+                }
+                readCounts.set(s, 0);
+            }
+        }
+
+        // Window overflow: its oldest entry either joins main or loses to main's LRU victim.
+        private void promoteEldest() {
+            Iterator<Map.Entry<K, Entry<V>>> it = window.entrySet().iterator();
+            Map.Entry<K, Entry<V>> candidate = it.next();
+            it.remove();
+            if (main.size() < mainSize) {
+                main.put(candidate.getKey(), candidate.getValue());
+                return;
+            }
+            Iterator<Map.Entry<K, Entry<V>>> mit = main.entrySet().iterator();
+            Map.Entry<K, Entry<V>> victim = mit.next();
+            if (sketch.frequency(candidate.getKey().hashCode()) > sketch.frequency(victim.getKey().hashCode())) {
+                mit.remove();
+                data.remove(victim.getKey());
+                untag(victim.getKey(), victim.getValue().tag);
+                main.put(candidate.getKey(), candidate.getValue());
+                evictions++;
+            } else {
+                data.remove(candidate.getKey());
+                untag(candidate.getKey(), candidate.getValue().tag);
+                rejections++;
+            }
+        }
+
+        // Drops the entries under `tag` that `affected` says a change can alter.
+        void invalidate(String tag, Affected<K, V> affected) {
+            lock.lock();
+            try {
+                version++;
+                Map<K, V> entries = byTag.get(tag);
+                if (entries == null) return;
+                for (Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<K, V> e = it.next();
+                    if (!affected.test(e.getKey(), e.getValue())) continue;
+                    data.remove(e.getKey());
+                    if (window.remove(e.getKey()) == null) main.remove(e.getKey());
+                    it.remove();
+                    invalidations++;
+                }
+                if (entries.isEmpty()) byTag.remove(tag);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void untag(K key, String tag) {
+            Map<K, V> entries = byTag.get(tag);
+            if (entries != null && entries.remove(key) != null && entries.isEmpty()) byTag.remove(tag);
+        }
+
+        int size() { return data.size(); }
+
+        Stats stats() {
+            lock.lock();
+            try {
+                return new Stats(hits.sum(), misses.sum(), evictions, rejections, invalidations, data.size(), windowSize + mainSize);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        static final class Stats {
+            final long hits, misses, evictions, rejections, invalidations;
+            final int size, capacity;
+
+            Stats(long hits, long misses, long evictions, long rejections, long invalidations, int size, int capacity) {
+                this.hits = hits;
+                this.misses = misses;
+                this.evictions = evictions;
+                this.rejections = rejections;
+                this.invalidations = invalidations;
+                this.size = size;
+                this.capacity = capacity;
+            }
+
+            double hitRate() { return hits + misses == 0 ? 0 : (double) hits / (hits + misses); }
+
+            @Override
+            public String toString() {
+                return String.format("size=%d/%d hits=%d misses=%d hitRate=%.3f evictions=%d rejected=%d invalidated=%d",
+                        size, capacity, hits, misses, hitRate(), evictions, rejections, invalidations);
+            }
+        }
+    }
+
+    // ----- Frequency sketch: approximate access counts for cache admission -----
+    // Count-min sketch of 4-bit counters, 16 per long, four hashed counters per key.
+    // Every counter is halved once the sample period is used up, so popularity ages out.
+    static final class FrequencySketch {
+        private static final int[] SEEDS = {0x97CB3127, 0xB71C4F3D, 0x2B3E1A57, 0xC3A5C85C};
+        private final long[] table;
+        private final int mask;
+        private final int samplePeriod;
+        private int additions;
+
+        FrequencySketch(int maximumSize) {
+            int words = Integer.highestOneBit(Math.max(4, maximumSize - 1)) << 1;
+            this.table = new long[words];
+            this.mask = words - 1;
+            this.samplePeriod = 10 * Math.max(1, maximumSize);
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int h = spread(hash, i);
+                int word = h & mask, shift = ((h >>> 24) & 15) << 2;
+                if (((table[word] >>> shift) & 15) < 15) {
+                    table[word] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= samplePeriod) halve();
+        }
+
+        int frequency(int hash) {
+            int min = 15;
+            for (int i = 0; i < 4; i++) {
+                int h = spread(hash, i);
+                min = Math.min(min, (int) ((table[h & mask] >>> (((h >>> 24) & 15) << 2)) & 15));
+            }
+            return min;
+        }
+
+        private void halve() {
+            for (int i = 0; i < table.length; i++) table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            additions >>>= 1;
+        }
+
+        private static int spread(int hash, int i) {
+            int h = (hash + SEEDS[i]) * 0x9E3779B9;
+            return h ^ (h >>> 15);
+        }
+    }
+
+    // ----- Route key: normalized (source, destination) pair -----
+    static final class RouteKey {
+        final String source;
+        final String destination;
+        private final int hash;
+
+        RouteKey(String source, String destination) {
+            this.source = normalizeKey(source);
+            this.destination = normalizeKey(destination);
+            // Not 31 * a + b: String.hashCode is itself base 31, so city names that differ
+            // only in their last characters ("City12" -> "City34") would collide in bulk.
+            this.hash = IntHashMap.mix(this.source.hashCode() * 0x9E3779B9 + this.destination.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RouteKey)) return false;
+            RouteKey k = (RouteKey) o;
+            return hash == k.hash && source.equals(k.source) && destination.equals(k.destination);
+        }
+
+        @Override
+        public int hashCode() { return hash; }
+
+        @Override
+        public String toString() { return source + " -> " + destination; }
+    }
+
+    // ----- Transport catalog: route index + global vehicleId index -----
+    // Vehicles are indexed by their own from/to, which is what route searches match on;
+    // the Transportation grouping is kept for listing.
+    static class TransportCatalog {
+        private static final Metrics.Timer SEARCH = Metrics.GLOBAL.timer(Metrics.Op.VEHICLE_SEARCH);
+
+        private final List<Transportation> transports = new ArrayList<>();
+        private final Map<RouteKey, List<Vehicle>> byRoute = new HashMap<>();
+        private final IntHashMap<Vehicle> byId;
+
+        public TransportCatalog() { this(16); }
+
+        public TransportCatalog(int expectedVehicles) {
+            this.byId = new IntHashMap<>(expectedVehicles);
+        }
+
+        public void addTransportation(Transportation t) {
+            transports.add(t);
+            for (Vehicle v : t.vehicles) index(v);
+        }
+
+        public void addVehicle(Transportation t, Vehicle v) {
+            t.addVehicle(v);
+            index(v);
+        }
+
+        private void index(Vehicle v) {
+            Vehicle previous = byId.put(v.vehicleId, v);
+            if (previous != null) unlinkRoute(previous);
+            byRoute.computeIfAbsent(new RouteKey(v.from, v.to), k -> new ArrayList<>()).add(v);
+        }
+
+        private void unlinkRoute(Vehicle v) {
+            RouteKey key = new RouteKey(v.from, v.to);
+            List<Vehicle> list = byRoute.get(key);
+            if (list == null) return;
+            list.remove(v);
+            if (list.isEmpty()) byRoute.remove(key);
+        }
+
+        public Vehicle findById(int vehicleId) { return byId.get(vehicleId); }
+
+        public List<Vehicle> findByRoute(String source, String destination) {
+            long t0 = SEARCH.start();
+            List<Vehicle> list = byRoute.get(new RouteKey(source, destination));
+            SEARCH.success(t0);
+            return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+        }
+
+        public boolean updatePrice(int vehicleId, double price) {
+            Vehicle v = byId.get(vehicleId);
+            if (v == null) return false;
+            v.price = price;
+            return true;
+        }
+
+        public List<Transportation> transportations() { return Collections.unmodifiableList(transports); }
+        public int vehicleCount() { return byId.size(); }
+    }
+
+    // ----- Itinerary engine: multi-leg routes over the vehicle graph -----
+    // Cities are numbered and every vehicle becomes one directed edge, laid out in
+    // CSR form (offsets/targets/prices), so a search walks flat int/double arrays.
+    // Cheapest-price queries run Dijkstra with an early exit at the destination;
+    // fewest-hops queries run a layered BFS that breaks ties on price.
+    //
+    // Results are cached per (from, to, mode) in a small LRU. A price change only
+    // evicts what it can affect: a rise evicts itineraries that ride that vehicle; a
+    // drop also evicts itineraries costing more than the new price, since any route
+    // through the cheaper edge costs at least that much. Everything else stays.
+    static class ItineraryEngine {
+        static final int DEFAULT_CACHE_SIZE = 4096;
+
+        enum Mode { CHEAPEST, FEWEST_HOPS }
+
+        static final class Itinerary {
+            final List<Vehicle> legs;
+            final double totalPrice;
+
+            Itinerary(List<Vehicle> legs, double totalPrice) {
+                this.legs = legs;
+                this.totalPrice = totalPrice;
+            }
+
+            int hops() { return legs.size(); }
+        }
+
+        private final TransportCatalog transports;
+        private final Map<String, Integer> cityIds = new HashMap<>();
+        private final int[] offsets;
+        private final int[] targets;
+        private final int[] vehicleIds;
+        private final double[] prices;
+        private final IntHashMap<Integer> edgeOf;
+
+        // Guards the cache, its vehicle index and `version`.
+        private final Object cacheLock = new Object();
+        private final LinkedHashMap<Long, Itinerary> cache;
+        private final Map<Integer, Set<Long>> keysByVehicle = new HashMap<>();
+        private long version;
+
+        public ItineraryEngine(TransportCatalog transports) { this(transports, DEFAULT_CACHE_SIZE); }
+
+        public ItineraryEngine(TransportCatalog transports, int cacheSize) {
+            this.transports = transports;
+            List<Vehicle> all = new ArrayList<>(transports.vehicleCount());
+            for (Transportation t : transports.transportations()) {
+                for (Vehicle v : t.vehicles) {
+                    if (transports.findById(v.vehicleId) == v) all.add(v);
+                }
+            }
+            int edges = all.size();
+            int[] from = new int[edges];
+            int[] to = new int[edges];
+            for (int i = 0; i < edges; i++) {
+                from[i] = cityId(all.get(i).from);
+                to[i] = cityId(all.get(i).to);
+            }
+            offsets = new int[cityIds.size() + 1];
+            for (int f : from) offsets[f + 1]++;
+            for (int c = 0; c < cityIds.size(); c++) offsets[c + 1] += offsets[c];
+            int[] fill = Arrays.copyOf(offsets, cityIds.size());
+            targets = new int[edges];
+            vehicleIds = new int[edges];
+            prices = new double[edges];
+            edgeOf = new IntHashMap<>(edges);
+            for (int i = 0; i < edges; i++) {
+                int e = fill[from[i]]++;
+                Vehicle v = all.get(i);
+                targets[e] = to[i];
+                vehicleIds[e] = v.vehicleId;
+                prices[e] = v.price;
+                edgeOf.put(v.vehicleId, e);
+            }
+            this.cache = new LinkedHashMap<Long, Itinerary>(64, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Itinerary> eldest) {
+                    if (size() <= cacheSize) return false;
+                    unindex(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        private int cityId(String city) {
+            return cityIds.computeIfAbsent(normalizeKey(city), k -> cityIds.size());
+        }
+
+        public int cityCount() { return cityIds.size(); }
+        public int edgeCount() { return targets.length; }
+
+        // Best itinerary from `source` to `destination`, or null if there is none.
+        public Itinerary find(String source, String destination, Mode mode) {
+            Integer s = cityIds.get(normalizeKey(source));
+            Integer t = cityIds.get(normalizeKey(destination));
+            if (s == null || t == null || s.equals(t)) return null;
+            long key = (((long) s << 32) | t) << 1 | mode.ordinal();
+            long seen;
+            synchronized (cacheLock) {
+                Itinerary hit = cache.get(key);
+                if (hit != null) return hit;
+                seen = version;
+            }
+            Itinerary found = mode == Mode.CHEAPEST ? cheapest(s, t) : fewestHops(s, t);
+            if (found == null) return null;
+            synchronized (cacheLock) {
+                // A price moved while we searched; the answer may already be stale.
+                if (version == seen) {
+                    cache.put(key, found);
+                    for (Vehicle v : found.legs) keysByVehicle.computeIfAbsent(v.vehicleId, k -> new HashSet<>()).add(key);
+                }
+            }
+            return found;
+        }
+
+        public Itinerary findUncached(String source, String destination, Mode mode) {
+            Integer s = cityIds.get(normalizeKey(source));
+            Integer t = cityIds.get(normalizeKey(destination));
+            if (s == null || t == null || s.equals(t)) return null;
+            return mode == Mode.CHEAPEST ? cheapest(s, t) : fewestHops(s, t);
+        }
+
+        // Called after a vehicle's price changed in the catalog.
+        public void onPriceChange(int vehicleId, double newPrice) {
+            Integer e = edgeOf.get(vehicleId);
+            if (e == null) return;
+            synchronized (cacheLock) {
+                double old = prices[e];
+                prices[e] = newPrice;
+                version++;
+                Set<Long> using = keysByVehicle.remove(vehicleId);
+                if (using != null) {
+                    for (Long key : using) {
+                        Itinerary it = cache.remove(key);
+                        if (it != null) unindex(key, it);
+                    }
+                }
+                if (newPrice < old) {
+                    Iterator<Map.Entry<Long, Itinerary>> it = cache.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<Long, Itinerary> entry = it.next();
+                        if (entry.getValue().totalPrice > newPrice) {
+                            it.remove();
+                            unindex(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+            }
+        }
+
+        public int cachedCount() {
+            synchronized (cacheLock) { return cache.size(); }
+        }
+
+        private void unindex(Long key, Itinerary it) {
+            for (Vehicle v : it.legs) {
+                Set<Long> keys = keysByVehicle.get(v.vehicleId);
+                if (keys != null && keys.remove(key) && keys.isEmpty()) keysByVehicle.remove(v.vehicleId);
+            }
+        }
+
+        private Itinerary cheapest(int s, int t) {
+            int n = cityIds.size();
+            double[] dist = new double[n];
+            int[] via = new int[n];
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            Arrays.fill(via, -1);
+            boolean[] done = new boolean[n];
+            dist[s] = 0;
+            // Binary heap with lazy deletion: parallel key/node arrays.
+            double[] heapKey = new double[Math.max(16, n)];
+            int[] heapNode = new int[heapKey.length];
+            int size = 0;
+            heapKey[0] = 0;
+            heapNode[size++] = s;
+            while (size > 0) {
+                int u = heapNode[0];
+                double d = heapKey[0];
+                size--;
+                if (size > 0) {
+                    double k = heapKey[size];
+                    int x = heapNode[size];
+                    int i = 0;
+                    for (int c; (c = 2 * i + 1) < size; i = c) {
+                        if (c + 1 < size && heapKey[c + 1] < heapKey[c]) c++;
+                        if (heapKey[c] >= k) break;
+                        heapKey[i] = heapKey[c];
+                        heapNode[i] = heapNode[c];
+                    }
+                    heapKey[i] = k;
+                    heapNode[i] = x;
+                }
+                if (done[u]) continue;
+                done[u] = true;
+                if (u == t) break;
+                for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                    int v = targets[e];
+                    double nd = d + prices[e];
+                    if (nd >= dist[v]) continue;
+                    dist[v] = nd;
+                    via[v] = e;
+                    if (size == heapKey.length) {
+                        heapKey = Arrays.copyOf(heapKey, size * 2);
+                        heapNode = Arrays.copyOf(heapNode, size * 2);
+                    }
+                    int i = size++;
+                    while (i > 0) {
+                        int parent = (i - 1) >>> 1;
+                        if (heapKey[parent] <= nd) break;
+                        heapKey[i] = heapKey[parent];
+                        heapNode[i] = heapNode[parent];
+                        i = parent;
+                    }
+                    heapKey[i] = nd;
+                    heapNode[i] = v;
+                }
+            }
+            return via[t] < 0 ? null : path(s, t, via);
+        }
+
+        private Itinerary fewestHops(int s, int t) {
+            int n = cityIds.size();
+            int[] hops = new int[n];
+            double[] cost = new double[n];
+            int[] via = new int[n];
+            Arrays.fill(hops, -1);
+            Arrays.fill(via, -1);
+            hops[s] = 0;
+            int[] layer = new int[n];
+            int[] next = new int[n];
+            layer[0] = s;
+            int layerSize = 1;
+            while (layerSize > 0 && hops[t] < 0) {
+                int nextSize = 0;
+                for (int i = 0; i < layerSize; i++) {
+                    int u = layer[i];
+                    for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                        int v = targets[e];
+                        double c = cost[u] + prices[e];
+                        if (hops[v] < 0) {
+                            hops[v] = hops[u] + 1;
+                            cost[v] = c;
+                            via[v] = e;
+                            next[nextSize++] = v;
+                        } else if (hops[v] == hops[u] + 1 && c < cost[v]) {
+                            cost[v] = c;
+                            via[v] = e;
+                        }
+                    }
+                }
+                int[] swap = layer;
+                layer = next;
+                next = swap;
+                layerSize = nextSize;
+            }
+            return via[t] < 0 ? null : path(s, t, via);
+        }
+
+        private int sourceOf(int edge) {
+            int lo = 0, hi = offsets.length - 2;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (offsets[mid] <= edge) lo = mid; else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        private Itinerary path(int s, int t, int[] via) {
+            ArrayDeque<Vehicle> legs = new ArrayDeque<>();
+            double total = 0;
+            for (int c = t; c != s; ) {
+                int e = via[c];
+                legs.addFirst(transports.findById(vehicleIds[e]));
+                total += prices[e];
+                c = sourceOf(e);
+            }
+            return new Itinerary(Collections.unmodifiableList(new ArrayList<>(legs)), total);
+        }
+    }
+
+    // ----- Inventory: remaining rooms per hotel-night, seats per vehicle-departure -----
+    // Days are offsets from the engine's base date. The bookable window is the
+    // horizon starting today (by the engine's clock), so it moves forward at
+    // midnight instead of shrinking with uptime. Each resource gets one DayCalendar,
+    // a ring of `horizon` slots indexed by epoch day modulo the horizon, created on
+    // first use; a day's slot is cleared and handed to the day one horizon later as
+    // soon as it rolls into the past. Every reserve/release is a CAS on a single
+    // slot, so there is no lock anywhere except the once-a-day roll.
+    // A resource nobody has booked yet has no calendar: it is full on every day.
+    static class InventoryEngine {
+        static final int DEFAULT_HORIZON_DAYS = 365;
+
+        enum Kind { HOTEL, VEHICLE }
+
+        // One requested item: `qty` units of a resource for `days` consecutive days.
+        static final class Reservation {
+            final Kind kind;
+            final int resourceId;
+            final int fromDay;
+            final int days;
+            final int qty;
+
+            Reservation(Kind kind, int resourceId, int fromDay, int days, int qty) {
+                this.kind = kind;
+                this.resourceId = resourceId;
+                this.fromDay = fromDay;
+                this.days = days;
+                this.qty = qty;
+            }
+
+            static Reservation rooms(int hotelId, int fromDay, int nights, int rooms) {
+                return new Reservation(Kind.HOTEL, hotelId, fromDay, nights, rooms);
+            }
+
+            static Reservation seats(int vehicleId, int day, int seats) {
+                return new Reservation(Kind.VEHICLE, vehicleId, day, 1, seats);
+            }
+        }
+
+        // Remaining units per day for one resource, plus one bitmap per power of two:
+        // bit s of level k is set while slot s has at least 2^k units left. A year is six
+        // words per level, so "3 free on days 12-14" is a masked compare against levels 1
+        // and 2 rather than a read per day. The slots are the truth; a writer republishes
+        // the levels its change crossed and repeats until the count stops moving under it.
+        //
+        // Days here are epoch days. A slot packs the epoch day it currently holds (high
+        // half) with that day's count (low half), so a take or give for a day never
+        // touches a count left behind by the day that had the slot before it.
+        static final class DayCalendar {
+            final int capacity;
+            private final int horizon;
+            private final AtomicLongArray slots;
+            private final int words;
+            private final int levels;
+            private final AtomicLongArray atLeast; // level k is words [k * words, (k + 1) * words)
+
+            // The ring starts out holding days [firstDay, firstDay + horizon), all full.
+            DayCalendar(int horizon, int capacity, int firstDay) {
+                this.capacity = capacity;
+                this.horizon = horizon;
+                long[] init = new long[horizon];
+                for (int d = firstDay; d < firstDay + horizon; d++) init[slot(d)] = pack(d, capacity);
+                slots = new AtomicLongArray(init);
+                words = (horizon + 63) >>> 6;
+                levels = 32 - Integer.numberOfLeadingZeros(Math.max(0, capacity));
+                long[] bits = new long[levels * words];
+                for (int w = 0; w < words; w++) {
+                    long full = rangeMask(w, 0, horizon);
+                    for (int k = 0; k < levels; k++) bits[k * words + w] = full;
+                }
+                atLeast = new AtomicLongArray(bits);
+            }
+
+            private static long pack(int day, int count) { return (long) day << 32 | count; }
+            private static int dayIn(long slot) { return (int) (slot >> 32); }
+            private static int countIn(long slot) { return (int) slot; }
+
+            private int slot(int day) { return Math.floorMod(day, horizon); }
+
+            // Units left on `day` as seen in a slot: a slot still holding an earlier day
+            // means `day` is untouched, one holding a later day means `day` is long gone.
+            private int countFor(long slot, int day) {
+                int held = dayIn(slot);
+                return held == day ? countIn(slot) : held < day ? capacity : 0;
+            }
+
+            // Bits of word w that fall in slots [from, to).
+            static long rangeMask(int w, int from, int to) {
+                int lo = Math.max(from - (w << 6), 0), hi = Math.min(to - (w << 6), 64);
+                return lo >= hi ? 0 : (-1L >>> (64 - (hi - lo))) << lo;
+            }
+
+            int remaining(int day) { return countFor(slots.get(slot(day)), day); }
+
+            boolean take(int day, int qty) {
+                int s = slot(day);
+                while (true) {
+                    long cur = slots.get(s);
+                    int n = countFor(cur, day);
+                    if (n < qty) return false;
+                    if (slots.compareAndSet(s, cur, pack(day, n - qty))) {
+                        int was = countIn(cur);
+                        publish(s, Math.min(was, n - qty), Math.max(was, n - qty));
+                        return true;
+                    }
+                }
+            }
+
+            // A day that has already left the ring was never going to be sold again; its
+            // units are simply dropped.
+            void give(int day, int qty) {
+                int s = slot(day);
+                while (true) {
+                    long cur = slots.get(s);
+                    if (dayIn(cur) != day) return;
+                    int n = countIn(cur);
+                    int next = Math.min(capacity, n + qty);
+                    if (slots.compareAndSet(s, cur, pack(day, next))) {
+                        publish(s, n, next);
+                        return;
+                    }
+                }
+            }
+
+            // Hands the slot of a day that has passed to the day one horizon later, full.
+            void clear(int pastDay) {
+                int s = slot(pastDay);
+                while (true) {
+                    long cur = slots.get(s);
+                    if (dayIn(cur) > pastDay) return;
+                    if (slots.compareAndSet(s, cur, pack(pastDay + horizon, capacity))) {
+                        publish(s, countIn(cur), capacity);
+                        return;
+                    }
+                }
+            }
+
+            // Brings the levels with a threshold in (lo, hi] in line with the slot's count.
+            private void publish(int s, int lo, int hi) {
+                int from = 32 - Integer.numberOfLeadingZeros(lo);          // first k with 2^k > lo
+                int to = Math.min(levels, 32 - Integer.numberOfLeadingZeros(hi)); // past the last k with 2^k <= hi
+                if (from >= to) return;
+                long bit = 1L << s;
+                int w = s >>> 6;
+                int n;
+                do {
+                    n = countIn(slots.get(s));
+                    for (int k = from; k < to; k++) {
+                        int i = k * words + w;
+                        boolean on = n >= 1 << k;
+                        while (true) {
+                            long cur = atLeast.get(i);
+                            long next = on ? cur | bit : cur & ~bit;
+                            if (cur == next || atLeast.compareAndSet(i, cur, next)) break;
+                        }
+                    }
+                } while (countIn(slots.get(s)) != n);
+            }
+
+            private boolean allSet(int level, int from, int to) {
+                int base = level * words;
+                for (int w = from >>> 6, last = (to - 1) >>> 6; w <= last; w++) {
+                    long m = rangeMask(w, from, to);
+                    if ((atLeast.get(base + w) & m) != m) return false;
+                }
+                return true;
+            }
+
+            // Days [from, to) as at most two slot ranges, since the ring may wrap.
+            private boolean allSetDays(int level, int from, int to) {
+                int s = slot(from), end = s + (to - from);
+                if (end <= horizon) return allSet(level, s, end);
+                return allSet(level, s, horizon) && allSet(level, 0, end - horizon);
+            }
+
+            // True if every day in [from, to) (at most one horizon, all still in the ring)
+            // has at least qty (> 0) units left. Only a qty strictly between two powers of
+            // two, on a range that passes the lower level and fails the upper one, falls
+            // back to the per-day counts.
+            boolean hasFree(int from, int to, int qty) {
+                if (qty > capacity) return false;
+                int k = 31 - Integer.numberOfLeadingZeros(qty);
+                if (!allSetDays(k, from, to)) return false;
+                if ((qty & (qty - 1)) == 0) return true;
+                if (k + 1 < levels && allSetDays(k + 1, from, to)) return true;
+                for (int d = from; d < to; d++) if (remaining(d) < qty) return false;
+                return true;
+            }
+        }
+
+        // Today's epoch day and the clock millis at which it ends.
+        private static final class Today {
+            final int epochDay;
+            final long until;
+
+            Today(int epochDay, long until) {
+                this.epochDay = epochDay;
+                this.until = until;
+            }
+        }
+
+        private final HotelCatalog hotels;
+        private final TransportCatalog transports;
+        private final Clock clock;
+        private final LocalDate baseDate;
+        private final int baseEpochDay;
+        private final int horizon;
+        private final ConcurrentHashMap<Integer, DayCalendar> rooms = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<Integer, DayCalendar> seats = new ConcurrentHashMap<>();
+        private volatile Today today;
+        // Every calendar has cleared the days before this one. Guarded by `this` for writes.
+        private volatile int rolledTo;
+
+        public InventoryEngine(HotelCatalog hotels, TransportCatalog transports) {
+            this(hotels, transports, Clock.systemDefaultZone(), DEFAULT_HORIZON_DAYS);
+        }
+
+        public InventoryEngine(HotelCatalog hotels, TransportCatalog transports, Clock clock, int horizon) {
+            this.hotels = hotels;
+            this.transports = transports;
+            this.clock = clock;
+            this.baseDate = LocalDate.now(clock);
+            this.baseEpochDay = (int) baseDate.toEpochDay();
+            this.horizon = horizon;
+            this.today = todayAt(baseEpochDay);
+            this.rolledTo = baseEpochDay;
+        }
+
+        public LocalDate baseDate() { return baseDate; }
+        public int horizon() { return horizon; }
+
+        public int dayOf(LocalDate date) { return (int) ChronoUnit.DAYS.between(baseDate, date); }
+
+        // Absolute day numbers, for anything that outlives this engine's base date.
+        public int epochDay(int day) { return baseEpochDay + day; }
+        public int dayOfEpoch(int epochDay) { return epochDay - baseEpochDay; }
+
+        // Today as an engine day; bookable days are [today(), today() + horizon()).
+        public int today() { return dayOfEpoch(todayEpoch()); }
+
+        private Today todayAt(int epochDay) {
+            long until = LocalDate.ofEpochDay(epochDay + 1L).atStartOfDay(clock.getZone()).toInstant().toEpochMilli();
+            return new Today(epochDay, until);
+        }
+
+        // One clock read per call; the date itself is only worked out again at midnight,
+        // and the first caller after it clears the day that just ended.
+        private int todayEpoch() {
+            Today t = today;
+            if (clock.millis() < t.until) return t.epochDay;
+            t = todayAt((int) LocalDate.now(clock).toEpochDay());
+            if (rolledTo < t.epochDay) rollTo(t.epochDay);
+            today = t;
+            return t.epochDay;
+        }
+
+        private synchronized void rollTo(int firstDay) {
+            if (rolledTo >= firstDay) return;
+            int from = Math.max(rolledTo, firstDay - horizon);
+            for (DayCalendar c : rooms.values()) for (int d = from; d < firstDay; d++) c.clear(d);
+            for (DayCalendar c : seats.values()) for (int d = from; d < firstDay; d++) c.clear(d);
+            rolledTo = firstDay;
+        }
+
+        // Returns null when the resource is unknown.
+        private DayCalendar calendar(Kind kind, int id) {
+            if (kind == Kind.HOTEL) {
+                DayCalendar c = rooms.get(id);
+                if (c != null) return c;
+                Hotel h = hotels.findById(id);
+                return h == null ? null : rooms.computeIfAbsent(id, k -> new DayCalendar(horizon, h.totalRooms, todayEpoch()));
+            }
+            DayCalendar c = seats.get(id);
+            if (c != null) return c;
+            Vehicle v = transports.findById(id);
+            return v == null ? null : seats.computeIfAbsent(id, k -> new DayCalendar(horizon, v.seatingCapacity, todayEpoch()));
+        }
+
+        private int capacityOf(Kind kind, int id) {
+            if (kind == Kind.HOTEL) {
+                Hotel h = hotels.findById(id);
+                return h == null ? 0 : h.totalRooms;
+            }
+            Vehicle v = transports.findById(id);
+            return v == null ? 0 : v.seatingCapacity;
+        }
+
+        private boolean inRange(int fromDay, int days) {
+            int first = today();
+            return fromDay >= first && days > 0 && fromDay + days <= first + horizon;
+        }
+
+        // All days or none: a failed day rolls back the days already taken.
+        public boolean reserve(Reservation r) {
+            if (r.qty <= 0 || !inRange(r.fromDay, r.days)) return false;
+            DayCalendar c = calendar(r.kind, r.resourceId);
+            if (c == null) return false;
+            int from = epochDay(r.fromDay);
+            for (int d = 0; d < r.days; d++) {
+                if (!c.take(from + d, r.qty)) {
+                    for (int u = 0; u < d; u++) c.give(from + u, r.qty);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Days before today are over and have left the ring (see reserveRemaining).
+        public void release(Reservation r) {
+            int from = Math.max(r.fromDay, today()), to = r.fromDay + r.days;
+            if (r.qty <= 0 || to <= from) return;
+            DayCalendar c = calendar(r.kind, r.resourceId);
+            if (c == null) return;
+            for (int d = from; d < to; d++) c.give(epochDay(d), r.qty);
+        }
+
+        // For a booking restored after its first day has passed: holds only the days from
+        // today on, and nothing at all once the whole stay is over.
+        public boolean reserveRemaining(Reservation r) {
+            int from = Math.max(r.fromDay, today()), to = r.fromDay + r.days;
+            if (to <= from) return r.qty > 0;
+            return reserve(new Reservation(r.kind, r.resourceId, from, to - from, r.qty));
+        }
+
+        // All items or none: on the first failure every earlier item is released again.
+        public boolean reserveAll(List<Reservation> items) {
+            for (int i = 0; i < items.size(); i++) {
+                if (!reserve(items.get(i))) {
+                    for (int j = 0; j < i; j++) release(items.get(j));
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Whether `qty` units are free on each of `days` days from `fromDay`. Reserves nothing:
+        // a booking made on the strength of it can still lose the race and fail.
+        public boolean isAvailable(Kind kind, int id, int fromDay, int days, int qty) {
+            if (qty <= 0 || !inRange(fromDay, days)) return false;
+            DayCalendar c = (kind == Kind.HOTEL ? rooms : seats).get(id);
+            int from = epochDay(fromDay);
+            return c != null ? c.hasFree(from, from + days, qty) : qty <= capacityOf(kind, id);
+        }
+
+        public boolean roomsAvailable(int hotelId, int fromDay, int nights, int rooms) {
+            return isAvailable(Kind.HOTEL, hotelId, fromDay, nights, rooms);
+        }
+
+        public boolean seatsAvailable(int vehicleId, int day, int seats) {
+            return isAvailable(Kind.VEHICLE, vehicleId, day, 1, seats);
+        }
+
+        public int remaining(Kind kind, int id, int day) {
+            if (!inRange(day, 1)) return 0;
+            DayCalendar c = (kind == Kind.HOTEL ? rooms : seats).get(id);
+            return c != null ? c.remaining(epochDay(day)) : capacityOf(kind, id);
+        }
+
+        // Fraction of the resource already sold on `day`, 0 when it has no capacity.
+        public double occupancy(Kind kind, int id, int day) {
+            int cap = capacityOf(kind, id);
+            return cap <= 0 ? 0 : 1.0 - (double) remaining(kind, id, day) / cap;
+        }
+
+        public int remainingRooms(int hotelId, int day) { return remaining(Kind.HOTEL, hotelId, day); }
+        public int remainingSeats(int vehicleId, int day) { return remaining(Kind.VEHICLE, vehicleId, day); }
+    }
+
+    // ----- Bulk catalog feeds: streaming CSV / JSON Lines import and export -----
+    // Files are never read whole. A reader thread cuts the input into chunks of
+    // CHUNK_LINES lines and hands them through a bounded queue to parser threads;
+    // parsed rows come back through a second bounded queue to the calling thread,
+    // which is the only one touching the catalogue, so its indexes are built in the
+    // same pass with no locking. Memory use is capped by the two queue capacities,
+    // whatever the file size. Bad rows are counted and skipped, not fatal.
+    //
+    // Format is picked by extension: ".csv" (header row naming the columns, in any
+    // order) or anything else as JSON Lines (one flat object per line).
+    static class CatalogFeed {
+        static final String[] HOTEL_COLUMNS = {"hotelId", "name", "location", "rating", "pricePerRoom", "totalRooms"};
+        static final String[] VEHICLE_COLUMNS = {"vehicleId", "type", "franchise", "seats", "from", "to", "price"};
+        static final int CHUNK_LINES = 4096;
+        private static final int MAX_REPORTED_ERRORS = 20;
+        private static final Chunk END = new Chunk(-1, 0, Collections.emptyList());
+
+        static final class Report {
+            final long rows;
+            final long rejected;
+            final List<String> errors;
+            final long millis;
+
+            Report(long rows, long rejected, List<String> errors, long millis) {
+                this.rows = rows;
+                this.rejected = rejected;
+                this.errors = errors;
+                this.millis = millis;
+            }
+
+            @Override
+            public String toString() {
+                return rows + " rows loaded, " + rejected + " rejected in " + millis + " ms";
+            }
+        }
+
+        // Consecutive lines of the file; `index` is the chunk's position in the file and
+        // `firstLine` the 1-based file line number of lines.get(0).
+        private static final class Chunk {
+            final int index;
+            final long firstLine;
+            final List<String> lines;
+
+            Chunk(int index, long firstLine, List<String> lines) {
+                this.index = index;
+                this.firstLine = firstLine;
+                this.lines = lines;
+            }
+        }
+
+        private static final class Parsed<T> {
+            final int index;
+            final List<T> rows = new ArrayList<>();
+            final List<String> errors = new ArrayList<>();
+            int rejected;
+            final boolean last;
+
+            Parsed(int index, boolean last) {
+                this.index = index;
+                this.last = last;
+            }
+        }
+
+        static boolean isCsv(Path file) {
+            return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv");
+        }
+
+        public static Report importHotels(Path file, HotelCatalog catalog) throws IOException {
+            return load(file, HOTEL_COLUMNS, 5, new int[] {2}, f -> new Hotel(Integer.parseInt(f[0]), f[1], f[2],
+                    Integer.parseInt(f[3]), Double.parseDouble(f[4]),
+                    f[5] == null || f[5].isEmpty() ? Hotel.DEFAULT_ROOMS : Integer.parseInt(f[5])), catalog::add);
+        }
+
+        public static Report importVehicles(Path file, TransportCatalog catalog) throws IOException {
+            Map<RouteKey, Transportation> groups = new HashMap<>();
+            for (Transportation t : catalog.transportations()) groups.putIfAbsent(new RouteKey(t.source, t.destination), t);
+            return load(file, VEHICLE_COLUMNS, 7, new int[] {1, 2, 4, 5}, f -> new Vehicle(Integer.parseInt(f[0]), f[1], f[2],
+                    Integer.parseInt(f[3]), f[4], f[5], Double.parseDouble(f[6])), v -> {
+                Transportation t = groups.get(new RouteKey(v.from, v.to));
+                if (t == null) {
+                    t = new Transportation(v.from, v.to);
+                    groups.put(new RouteKey(v.from, v.to), t);
+                    catalog.addTransportation(t);
+                }
+                catalog.addVehicle(t, v);
+            });
+        }
+
+        // `shared` lists low-cardinality columns (cities, vehicle types, franchises);
+        // their values are de-duplicated so a million rows hold a few hundred strings.
+        private static <T> Report load(Path file, String[] columns, int required, int[] shared,
+                                       Function<String[], T> parser, Consumer<T> sink) throws IOException {
+            long start = System.nanoTime();
+            ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+            boolean csv = isCsv(file);
+            BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            int[] order;
+            try {
+                order = csv ? csvHeader(in.readLine(), columns, required, file) : null;
+            } catch (IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+            int workers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(workers * 2);
+            BlockingQueue<Parsed<T>> parsed = new ArrayBlockingQueue<>(workers * 2);
+            AtomicReference<IOException> readFailure = new AtomicReference<>();
+            ExecutorService pool = Executors.newFixedThreadPool(workers + 1, r -> {
+                Thread t = new Thread(r, "catalog-feed");
+                t.setDaemon(true);
+                return t;
+            });
+            long lineBase = csv ? 2 : 1;
+            try {
+                pool.execute(() -> {
+                    try (BufferedReader r = in) {
+                        int index = 0;
+                        long firstLine = lineBase;
+                        List<String> chunk = new ArrayList<>(CHUNK_LINES);
+                        for (String line; (line = r.readLine()) != null; ) {
+                            chunk.add(line);
+                            if (chunk.size() == CHUNK_LINES) {
+                                chunks.put(new Chunk(index++, firstLine, chunk));
+                                firstLine += CHUNK_LINES;
+                                chunk = new ArrayList<>(CHUNK_LINES);
+                            }
+                        }
+                        if (!chunk.isEmpty()) chunks.put(new Chunk(index, firstLine, chunk));
+                    } catch (IOException e) {
+                        readFailure.set(e);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        for (int i = 0; i < workers; i++) chunks.put(END);
+                    } catch (InterruptedException ignored) {
+                        // Shutting down; the workers are being interrupted too.
+                    }
+                });
+                for (int w = 0; w < workers; w++) {
+                    pool.execute(() -> {
+                        try {
+                            for (Chunk chunk; (chunk = chunks.take()) != END; ) {
+                                parsed.put(parseChunk(chunk, columns, required, order, shared, strings, parser));
+                            }
+                            parsed.put(new Parsed<>(-1, true));
+                        } catch (InterruptedException ignored) {
+                            // Import abandoned.
+                        }
+                    });
+                }
+                long rows = 0, rejected = 0;
+                List<String> errors = new ArrayList<>();
+                // Workers finish out of order; chunks are applied in file order, so when an id
+                // appears twice the later row always wins, as in a sequential import.
+                Map<Integer, Parsed<T>> early = new HashMap<>();
+                int next = 0;
+                for (int done = 0; done < workers; ) {
+                    Parsed<T> batch = parsed.take();
+                    if (batch.last) {
+                        done++;
+                        continue;
+                    }
+                    early.put(batch.index, batch);
+                    for (Parsed<T> b; (b = early.remove(next)) != null; next++) {
+                        for (T row : b.rows) sink.accept(row);
+                        rows += b.rows.size();
+                        rejected += b.rejected;
+                        for (String e : b.errors) if (errors.size() < MAX_REPORTED_ERRORS) errors.add(e);
+                    }
+                }
+                if (readFailure.get() != null) throw readFailure.get();
+                return new Report(rows, rejected, errors, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Import of " + file + " interrupted", e);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        private static <T> Parsed<T> parseChunk(Chunk chunk, String[] columns, int required, int[] order,
+                                                int[] shared, ConcurrentHashMap<String, String> strings,
+                                                Function<String[], T> parser) {
+            Parsed<T> out = new Parsed<>(chunk.index, false);
+            for (int n = 0; n < chunk.lines.size(); n++) {
+                String line = chunk.lines.get(n);
+                if (line.isBlank()) continue;
+                try {
+                    String[] fields = order != null ? csvRow(line, order, columns.length) : jsonRow(line, columns);
+                    for (int i = 0; i < required; i++) {
+                        if (fields[i] == null) throw new IllegalArgumentException("missing " + columns[i]);
+                    }
+                    for (int c : shared) {
+                        if (fields[c] != null) {
+                            String known = strings.putIfAbsent(fields[c], fields[c]);
+                            if (known != null) fields[c] = known;
+                        }
+                    }
+                    out.rows.add(parser.apply(fields));
+                } catch (RuntimeException e) {
+                    out.rejected++;
+                    if (out.errors.size() < MAX_REPORTED_ERRORS) {
+                        out.errors.add("line " + (chunk.firstLine + n) + ": " + e.getMessage() + ": " + line);
+                    }
+                }
+            }
+            return out;
+        }
+
+        // Maps each file column to its position in `columns`, or -1 if unused.
+        private static int[] csvHeader(String header, String[] columns, int required, Path file) throws IOException {
+            if (header == null) throw new IOException(file + " is empty");
+            List<String> names = splitCsv(header);
+            int[] order = new int[names.size()];
+            boolean[] seen = new boolean[columns.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = -1;
+                for (int c = 0; c < columns.length; c++) {
+                    if (columns[c].equalsIgnoreCase(names.get(i).trim())) {
+                        order[i] = c;
+                        seen[c] = true;
+                    }
+                }
+            }
+            for (int c = 0; c < required; c++) {
+                if (!seen[c]) throw new IOException(file + " has no '" + columns[c] + "' column");
+            }
+            return order;
+        }
+
+        private static String[] csvRow(String line, int[] order, int width) {
+            List<String> values = splitCsv(line);
+            String[] fields = new String[width];
+            for (int i = 0; i < order.length && i < values.size(); i++) {
+                if (order[i] >= 0) fields[order[i]] = values.get(i).trim();
+            }
+            return fields;
+        }
+
+        // RFC 4180 style: quoted fields may contain commas and doubled quotes.
+        static List<String> splitCsv(String line) {
+            List<String> out = new ArrayList<>();
+            StringBuilder sb = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c != '"') sb.append(c);
+                    else if (i + 1 < line.length() && line.charAt(i + 1) == '"') sb.append(line.charAt(++i));
+                    else quoted = false;
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    out.add(sb.toString());
+                    sb.setLength(0);
+                } else {
+                    sb.append(c);
+                }
+            }
+            out.add(sb.toString());
+            return out;
+        }
+
+        // Flat JSON object: string, number, boolean or null values; nesting is rejected.
+        static String[] jsonRow(String line, String[] columns) {
+            String[] fields = new String[columns.length];
+            int[] pos = {skipSpace(line, 0)};
+            expect(line, pos, '{');
+            if (peek(line, pos) == '}') return fields;
+            while (true) {
+                String key = jsonString(line, pos);
+                expect(line, pos, ':');
+                pos[0] = skipSpace(line, pos[0]);
+                String value;
+                if (peek(line, pos) == '"') {
+                    value = jsonString(line, pos);
+                } else {
+                    int start = pos[0];
+                    while (pos[0] < line.length() && ",} \t".indexOf(line.charAt(pos[0])) < 0) pos[0]++;
+                    value = line.substring(start, pos[0]);
+                    if (value.isEmpty() || value.charAt(0) == '{' || value.charAt(0) == '[') {
+                        throw new IllegalArgumentException("unsupported value for " + key);
+                    }
+                    if (value.equals("null")) value = null;
+                }
+                for (int c = 0; c < columns.length; c++) {
+                    if (columns[c].equals(key)) fields[c] = value;
+                }
+                char next = peek(line, pos);
+                pos[0]++;
+                if (next == '}') return fields;
+                if (next != ',') throw new IllegalArgumentException("expected ',' or '}' at " + (pos[0] - 1));
+            }
+        }
+
+        private static int skipSpace(String s, int i) {
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+            return i;
+        }
+
+        private static char peek(String s, int[] pos) {
+            pos[0] = skipSpace(s, pos[0]);
+            if (pos[0] >= s.length()) throw new IllegalArgumentException("unexpected end of line");
+            return s.charAt(pos[0]);
+        }
+
+        private static void expect(String s, int[] pos, char c) {
+            if (peek(s, pos) != c) throw new IllegalArgumentException("expected '" + c + "' at " + pos[0]);
+            pos[0]++;
+        }
+
+        private static String jsonString(String s, int[] pos) {
+            expect(s, pos, '"');
+            StringBuilder sb = new StringBuilder();
+            for (int i = pos[0]; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"') {
+                    pos[0] = i + 1;
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (++i >= s.length()) break;
+                char e = s.charAt(i);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (i + 4 >= s.length()) throw new IllegalArgumentException("bad \\u escape");
+                        sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                        i += 4;
+                        break;
+                    default: sb.append(e);
+                }
+            }
+            throw new IllegalArgumentException("unterminated string");
+        }
+
+        // Export streams straight from the catalogue through a buffered writer.
+        public static long exportHotels(Path file, HotelCatalog catalog) throws IOException {
+            boolean csv = isCsv(file);
+            long n = 0;
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                if (csv) writeCsv(out, (Object[]) HOTEL_COLUMNS);
+                for (Hotel h : catalog.all()) {
+                    Object[] row = {h.hotelId, h.name, h.location, h.rating, h.getPricePerRoom(), h.getTotalRooms()};
+                    if (csv) writeCsv(out, row); else writeJson(out, HOTEL_COLUMNS, row);
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        public static long exportVehicles(Path file, TransportCatalog catalog) throws IOException {
+            boolean csv = isCsv(file);
+            long n = 0;
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                if (csv) writeCsv(out, (Object[]) VEHICLE_COLUMNS);
+                for (Transportation t : catalog.transportations()) {
+                    for (Vehicle v : t.vehicles) {
+                        if (catalog.findById(v.vehicleId) != v) continue; // replaced by a later row
+                        Object[] row = {v.vehicleId, v.vehicleType, v.franchiseName, v.seatingCapacity, v.from, v.to, v.price};
+                        if (csv) writeCsv(out, row); else writeJson(out, VEHICLE_COLUMNS, row);
+                        n++;
+                    }
+                }
+            }
+            return n;
+        }
+
+        private static void writeCsv(BufferedWriter out, Object... row) throws IOException {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) out.write(',');
+                String v = String.valueOf(row[i]);
+                if (v.indexOf(',') >= 0 || v.indexOf('"') >= 0) out.write('"' + v.replace("\"", "\"\"") + '"');
+                else out.write(v);
+            }
+            out.newLine();
+        }
+
+        private static void writeJson(BufferedWriter out, String[] columns, Object[] row) throws IOException {
+            out.write('{');
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) out.write(',');
+                out.write('"' + columns[i] + "\":");
+                if (row[i] instanceof String) {
+                    out.write('"');
+                    String v = (String) row[i];
+                    for (int k = 0; k < v.length(); k++) {
+                        char c = v.charAt(k);
+                        if (c == '"' || c == '\\') out.write('\\');
+                        if (c < 0x20) out.write(String.format("\\u%04x", (int) c));
+                        else out.write(c);
+                    }
+                    out.write('"');
+                } else {
+                    out.write(String.valueOf(row[i]));
+                }
+            }
+            out.write('}');
+            out.newLine();
+        }
+    }
+
+    // ----- Memory-mapped binary catalog -----
+    // Read-only file form of the hotel and vehicle catalogues, opened with
+    // MappedByteBuffer. Lookups through this class (hotelRecord, hotelRecordsAt,
+    // vehicleRecordsOn, ...) read the page cache and allocate nothing on the heap.
+    // The booking services, however, work on HotelCatalog/TransportCatalog, whose
+    // Hotel and Vehicle objects carry live prices, so startup still materialises
+    // every record through loadInto. What the file saves is parsing and
+    // validation, plus one heap copy per distinct string instead of per row.
+    //
+    //   header    magic, version, counts and section offsets
+    //   hotels    fixed 28-byte records sorted by id:
+    //             id, nameRef, locationRef, locationKeyRef, rating, totalRooms, price(8)
+    //   vehicles  fixed 40-byte records sorted by id:
+    //             id, typeRef, franchiseRef, seats, fromRef, toRef, fromKeyRef, toKeyRef, price(8)
+    //   locIndex  (keyRef, start, count) groups sorted by keyRef, then hotel record numbers
+    //   routeIdx  (fromKeyRef, toKeyRef, start, count) groups, then vehicle record numbers
+    //   strings   sorted, de-duplicated table: count, offsets[count + 1], UTF-8 bytes
+    //
+    // Strings are stored once and referenced by index. Because the table is sorted,
+    // a location or route lookup binary-searches the table once and then compares ints.
+    static class MappedCatalog implements AutoCloseable {
+        static final int MAGIC = 0x54525643; // "TRVC"
+        static final int VERSION = 1;
+        static final int HEADER_BYTES = 4 * 4 + 8 * 5;
+        static final int HOTEL_BYTES = 6 * 4 + 8;
+        static final int VEHICLE_BYTES = 8 * 4 + 8;
+
+        private final FileChannel channel;
+        private final MappedByteBuffer map;
+        private final int hotelCount;
+        private final int vehicleCount;
+        private final int hotelsAt;
+        private final int vehiclesAt;
+        private final int locIndexAt;
+        private final int routeIndexAt;
+        private final int stringsAt;
+        private final int stringCount;
+        private final int stringBytesAt;
+
+        private MappedCatalog(FileChannel channel, MappedByteBuffer map) throws IOException {
+            this.channel = channel;
+            this.map = map;
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) throw new IOException("Not a catalog file (v" + VERSION + ")");
+            hotelCount = map.getInt(8);
+            vehicleCount = map.getInt(12);
+            hotelsAt = (int) map.getLong(16);
+            vehiclesAt = (int) map.getLong(24);
+            locIndexAt = (int) map.getLong(32);
+            routeIndexAt = (int) map.getLong(40);
+            stringsAt = (int) map.getLong(48);
+            stringCount = map.getInt(stringsAt);
+            stringBytesAt = stringsAt + 4 + 4 * (stringCount + 1);
+        }
+
+        public static MappedCatalog open(Path file) throws IOException {
+            FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+            if (ch.size() > Integer.MAX_VALUE) {
+                ch.close();
+                throw new IOException("Catalog larger than 2 GB is not supported: " + file);
+            }
+            return new MappedCatalog(ch, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+
+        public int hotelCount() { return hotelCount; }
+        public int vehicleCount() { return vehicleCount; }
+
+        // ---- string table ----
+        // Through `decoded`, when given, each string is decoded once and then shared.
+        private String string(int ref, String[] decoded) {
+            if (decoded == null) return string(ref);
+            String s = decoded[ref];
+            if (s == null) decoded[ref] = s = string(ref);
+            return s;
+        }
+
+        String string(int ref) {
+            int start = map.getInt(stringsAt + 4 + 4 * ref);
+            int end = map.getInt(stringsAt + 4 + 4 * (ref + 1));
+            byte[] b = new byte[end - start];
+            map.get(stringBytesAt + start, b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        private int compareString(int ref, byte[] key) {
+            int start = stringBytesAt + map.getInt(stringsAt + 4 + 4 * ref);
+            int len = stringBytesAt + map.getInt(stringsAt + 4 + 4 * (ref + 1)) - start;
+            int n = Math.min(len, key.length);
+            for (int i = 0; i < n; i++) {
+                int c = Integer.compare(map.get(start + i) & 0xff, key[i] & 0xff);
+                if (c != 0) return c;
+            }
+            return Integer.compare(len, key.length);
+        }
+
+        // Index of `s` in the string table, or -1.
+        int stringRef(String s) {
+            byte[] key = s.getBytes(StandardCharsets.UTF_8);
+            int lo = 0, hi = stringCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compareString(mid, key);
+                if (c < 0) lo = mid + 1;
+                else if (c > 0) hi = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+
+        // ---- hotels ----
+        private int hotelAt(int rec) { return hotelsAt + rec * HOTEL_BYTES; }
+
+        public int hotelRecord(int hotelId) {
+            int lo = 0, hi = hotelCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int id = map.getInt(hotelAt(mid));
+                if (id < hotelId) lo = mid + 1;
+                else if (id > hotelId) hi = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+
+        public int hotelId(int rec) { return map.getInt(hotelAt(rec)); }
+        public String hotelName(int rec) { return string(map.getInt(hotelAt(rec) + 4)); }
+        public String hotelLocation(int rec) { return string(map.getInt(hotelAt(rec) + 8)); }
+        public int hotelRating(int rec) { return map.getInt(hotelAt(rec) + 16); }
+        public int hotelRooms(int rec) { return map.getInt(hotelAt(rec) + 20); }
+        public double hotelPrice(int rec) { return map.getDouble(hotelAt(rec) + 24); }
+
+        public Hotel hotel(int rec) { return hotel(rec, null); }
+
+        private Hotel hotel(int rec, String[] decoded) {
+            int at = hotelAt(rec);
+            return new Hotel(map.getInt(at), string(map.getInt(at + 4), decoded), string(map.getInt(at + 8), decoded),
+                    hotelRating(rec), hotelPrice(rec), hotelRooms(rec));
+        }
+
+        public Hotel findHotel(int hotelId) {
+            int rec = hotelRecord(hotelId);
+            return rec < 0 ? null : hotel(rec);
+        }
+
+        // Record numbers of the hotels in `location`; materialise with hotel(rec) as needed.
+        public int[] hotelRecordsAt(String location) {
+            int key = stringRef(normalizeKey(location));
+            if (key < 0) return new int[0];
+            int groups = map.getInt(locIndexAt);
+            int lo = 0, hi = groups - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int g = locIndexAt + 4 + mid * 12;
+                int k = map.getInt(g);
+                if (k < key) lo = mid + 1;
+                else if (k > key) hi = mid - 1;
+                else return records(locIndexAt + 4 + groups * 12, map.getInt(g + 4), map.getInt(g + 8));
+            }
+            return new int[0];
+        }
+
+        // ---- vehicles ----
+        private int vehicleAt(int rec) { return vehiclesAt + rec * VEHICLE_BYTES; }
+
+        public int vehicleRecord(int vehicleId) {
+            int lo = 0, hi = vehicleCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int id = map.getInt(vehicleAt(mid));
+                if (id < vehicleId) lo = mid + 1;
+                else if (id > vehicleId) hi = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+
+        public double vehiclePrice(int rec) { return map.getDouble(vehicleAt(rec) + 32); }
+        public int vehicleSeats(int rec) { return map.getInt(vehicleAt(rec) + 12); }
+
+        public Vehicle vehicle(int rec) { return vehicle(rec, null); }
+
+        private Vehicle vehicle(int rec, String[] decoded) {
+            int at = vehicleAt(rec);
+            return new Vehicle(map.getInt(at), string(map.getInt(at + 4), decoded), string(map.getInt(at + 8), decoded),
+                    map.getInt(at + 12), string(map.getInt(at + 16), decoded), string(map.getInt(at + 20), decoded),
+                    map.getDouble(at + 32));
+        }
+
+        public Vehicle findVehicle(int vehicleId) {
+            int rec = vehicleRecord(vehicleId);
+            return rec < 0 ? null : vehicle(rec);
+        }
+
+        public int[] vehicleRecordsOn(String source, String destination) {
+            int from = stringRef(normalizeKey(source));
+            int to = stringRef(normalizeKey(destination));
+            if (from < 0 || to < 0) return new int[0];
+            int groups = map.getInt(routeIndexAt);
+            int lo = 0, hi = groups - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int g = routeIndexAt + 4 + mid * 16;
+                int c = map.getInt(g) != from ? Integer.compare(map.getInt(g), from) : Integer.compare(map.getInt(g + 4), to);
+                if (c < 0) lo = mid + 1;
+                else if (c > 0) hi = mid - 1;
+                else return records(routeIndexAt + 4 + groups * 16, map.getInt(g + 8), map.getInt(g + 12));
+            }
+            return new int[0];
+        }
+
+        private int[] records(int base, int start, int count) {
+            int[] out = new int[count];
+            for (int i = 0; i < count; i++) out[i] = map.getInt(base + 4 * (start + i));
+            return out;
+        }
+
+        // Materialises every record into heap catalogues, one Transportation per route group.
+        // Cities, vehicle types and franchises end up as one String each, as with a feed import.
+        public void loadInto(HotelCatalog hotels, TransportCatalog transports) {
+            String[] decoded = new String[stringCount];
+            for (int rec = 0; rec < hotelCount; rec++) hotels.add(hotel(rec, decoded));
+            int groups = map.getInt(routeIndexAt);
+            int recordsAt = routeIndexAt + 4 + groups * 16;
+            for (int g = 0; g < groups; g++) {
+                int at = routeIndexAt + 4 + g * 16;
+                int[] recs = records(recordsAt, map.getInt(at + 8), map.getInt(at + 12));
+                if (recs.length == 0) continue;
+                Vehicle first = vehicle(recs[0], decoded);
+                Transportation t = new Transportation(first.from, first.to);
+                transports.addTransportation(t);
+                transports.addVehicle(t, first);
+                for (int i = 1; i < recs.length; i++) transports.addVehicle(t, vehicle(recs[i], decoded));
+            }
+        }
+
+        @Override
+        public void close() throws IOException { channel.close(); }
+
+        // ---- writer ----
+        public static void write(Path file, HotelCatalog hotels, TransportCatalog transports) throws IOException {
+            List<Hotel> hs = new ArrayList<>(hotels.all());
+            hs.sort(Comparator.comparingInt(h -> h.hotelId));
+            List<Vehicle> vs = new ArrayList<>();
+            for (Transportation t : transports.transportations()) {
+                for (Vehicle v : t.vehicles) if (transports.findById(v.vehicleId) == v) vs.add(v);
+            }
+            vs.sort(Comparator.comparingInt(v -> v.vehicleId));
+
+            // Intern every string once, then number them in sorted order.
+            TreeMap<String, Integer> strings = new TreeMap<>((a, b) -> {
+                byte[] x = a.getBytes(StandardCharsets.UTF_8), y = b.getBytes(StandardCharsets.UTF_8);
+                return Arrays.compareUnsigned(x, y);
+            });
+            for (Hotel h : hs) {
+                strings.put(h.name, 0);
+                strings.put(h.location, 0);
+                strings.put(normalizeKey(h.location), 0);
+            }
+            for (Vehicle v : vs) {
+                strings.put(v.vehicleType, 0);
+                strings.put(v.franchiseName, 0);
+                strings.put(v.from, 0);
+                strings.put(v.to, 0);
+                strings.put(normalizeKey(v.from), 0);
+                strings.put(normalizeKey(v.to), 0);
+            }
+            int ref = 0;
+            for (Map.Entry<String, Integer> e : strings.entrySet()) e.setValue(ref++);
+
+            // Location groups: keyRef -> record numbers (TreeMap keeps them sorted by keyRef).
+            TreeMap<Integer, List<Integer>> locGroups = new TreeMap<>();
+            for (int i = 0; i < hs.size(); i++) {
+                locGroups.computeIfAbsent(strings.get(normalizeKey(hs.get(i).location)), k -> new ArrayList<>()).add(i);
+            }
+            TreeMap<Long, List<Integer>> routeGroups = new TreeMap<>();
+            for (int i = 0; i < vs.size(); i++) {
+                Vehicle v = vs.get(i);
+                long key = ((long) strings.get(normalizeKey(v.from)) << 32) | strings.get(normalizeKey(v.to));
+                routeGroups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+            }
+
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                long hotelsAt = HEADER_BYTES;
+                long vehiclesAt = hotelsAt + (long) hs.size() * HOTEL_BYTES;
+                long locAt = vehiclesAt + (long) vs.size() * VEHICLE_BYTES;
+                long routeAt = locAt + 4 + locGroups.size() * 12L + 4L * hs.size();
+                long stringsAt = routeAt + 4 + routeGroups.size() * 16L + 4L * vs.size();
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(hs.size());
+                out.writeInt(vs.size());
+                out.writeLong(hotelsAt);
+                out.writeLong(vehiclesAt);
+                out.writeLong(locAt);
+                out.writeLong(routeAt);
+                out.writeLong(stringsAt);
+                for (Hotel h : hs) {
+                    out.writeInt(h.hotelId);
+                    out.writeInt(strings.get(h.name));
+                    out.writeInt(strings.get(h.location));
+                    out.writeInt(strings.get(normalizeKey(h.location)));
+                    out.writeInt(h.rating);
+                    out.writeInt(h.totalRooms);
+                    out.writeDouble(h.pricePerRoom);
+                }
+                for (Vehicle v : vs) {
+                    out.writeInt(v.vehicleId);
+                    out.writeInt(strings.get(v.vehicleType));
+                    out.writeInt(strings.get(v.franchiseName));
+                    out.writeInt(v.seatingCapacity);
+                    out.writeInt(strings.get(v.from));
+                    out.writeInt(strings.get(v.to));
+                    out.writeInt(strings.get(normalizeKey(v.from)));
+                    out.writeInt(strings.get(normalizeKey(v.to)));
+                    out.writeDouble(v.price);
+                }
+                out.writeInt(locGroups.size());
+                int start = 0;
+                for (Map.Entry<Integer, List<Integer>> g : locGroups.entrySet()) {
+                    out.writeInt(g.getKey());
+                    out.writeInt(start);
+                    out.writeInt(g.getValue().size());
+                    start += g.getValue().size();
+                }
+                for (List<Integer> g : locGroups.values()) for (int rec : g) out.writeInt(rec);
+                out.writeInt(routeGroups.size());
+                start = 0;
+                for (Map.Entry<Long, List<Integer>> g : routeGroups.entrySet()) {
+                    out.writeInt((int) (g.getKey() >>> 32));
+                    out.writeInt((int) (long) g.getKey());
+                    out.writeInt(start);
+                    out.writeInt(g.getValue().size());
+                    start += g.getValue().size();
+                }
+                for (List<Integer> g : routeGroups.values()) for (int rec : g) out.writeInt(rec);
+                out.writeInt(strings.size());
+                int offset = 0;
+                List<byte[]> encoded = new ArrayList<>(strings.size());
+                for (String str : strings.keySet()) {
+                    byte[] b = str.getBytes(StandardCharsets.UTF_8);
+                    encoded.add(b);
+                    out.writeInt(offset);
+                    offset += b.length;
+                }
+                out.writeInt(offset);
+                for (byte[] b : encoded) out.write(b);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // ----- Booking State Pattern -----
+    // Transitions report what happened instead of printing it; see Presenter.
+    enum StateChange {
+        PENDING_TO_CONFIRMED,
+        PENDING_TO_CANCELLED,
+        CONFIRMED_TO_CANCELLED,
+        ALREADY_CONFIRMED,
+        CONFIRM_REJECTED,
+        ALREADY_CANCELLED,
+        // One line cancelled; the booking itself stays open.
+        LINE_CANCELLED
+    }
+
+    interface BookingState {
+        StateChange confirmBooking(Booking booking);
+        StateChange cancelBooking(Booking booking);
+        String stateName();
+    }
+
+    // States hold no data, so each is a single shared instance and a transition
+    // allocates nothing.
+    static final class PendingState implements BookingState {
+        static final PendingState INSTANCE = new PendingState();
+
+        private PendingState() { }
+
+        public StateChange confirmBooking(Booking booking) {
+            booking.transition(ConfirmedState.INSTANCE, StateChange.PENDING_TO_CONFIRMED);
+            return StateChange.PENDING_TO_CONFIRMED;
+        }
+        public StateChange cancelBooking(Booking booking) {
+            booking.transition(CancelledState.INSTANCE, StateChange.PENDING_TO_CANCELLED);
+            return StateChange.PENDING_TO_CANCELLED;
+        }
+        public String stateName() { return "PENDING"; }
+    }
+
+    static final class ConfirmedState implements BookingState {
+        static final ConfirmedState INSTANCE = new ConfirmedState();
+
+        private ConfirmedState() { }
+
+        public StateChange confirmBooking(Booking booking) {
+            return StateChange.ALREADY_CONFIRMED;
+        }
+        public StateChange cancelBooking(Booking booking) {
+            booking.transition(CancelledState.INSTANCE, StateChange.CONFIRMED_TO_CANCELLED);
+            return StateChange.CONFIRMED_TO_CANCELLED;
+        }
+        public String stateName() { return "CONFIRMED"; }
+    }
+
+    static final class CancelledState implements BookingState {
+        static final CancelledState INSTANCE = new CancelledState();
+
+        private CancelledState() { }
+
+        public StateChange confirmBooking(Booking booking) {
+            return StateChange.CONFIRM_REJECTED;
+        }
+        public StateChange cancelBooking(Booking booking) {
+            return StateChange.ALREADY_CANCELLED;
+        }
+        public String stateName() { return "CANCELLED"; }
+    }
+
+    // ----- Operation results -----
+    static final class BookingResult {
+        final int bookingId;
+        final int lineNo;
+        final InventoryEngine.Kind kind;
+        final int resourceId;
+        final int qty;
+        final double charge;
+        // Version of the price snapshot the charge was computed from.
+        final long priceVersion;
+        final StateChange change;
+
+        BookingResult(int bookingId, int lineNo, InventoryEngine.Kind kind, int resourceId, int qty, double charge,
+                      long priceVersion, StateChange change) {
+            this.bookingId = bookingId;
+            this.lineNo = lineNo;
+            this.kind = kind;
+            this.resourceId = resourceId;
+            this.qty = qty;
+            this.charge = charge;
+            this.priceVersion = priceVersion;
+            this.change = change;
+        }
+    }
+
+    static final class CancelResult {
+        final int bookingId;
+        // Line that was cancelled, or 0 when the whole booking was.
+        final int lineNo;
+        final double refund;
+        final StateChange change;
+
+        CancelResult(int bookingId, int lineNo, double refund, StateChange change) {
+            this.bookingId = bookingId;
+            this.lineNo = lineNo;
+            this.refund = refund;
+            this.change = change;
+        }
+    }
+
+    static final class PaymentResult {
+        enum Status { PAID_WALLET, PAID_EXTERNAL, INSUFFICIENT_FUNDS, PAYMENT_FAILED, REFUNDED }
+
+        final Status status;
+        final double amount;
+        final double walletBalance;
+
+        PaymentResult(Status status, double amount, double walletBalance) {
+            this.status = status;
+            this.amount = amount;
+            this.walletBalance = walletBalance;
+        }
+
+        boolean succeeded() { return status != Status.INSUFFICIENT_FUNDS && status != Status.PAYMENT_FAILED; }
+    }
+
+    static final class CheckoutResult {
+        enum Status { CONFIRMED, REJECTED, PAYMENT_FAILED }
+
+        final Status status;
+        final int userId;
+        final int bookingId;
+        final List<BookingResult> lines;
+        final double total;
+        // Null when the cart never reached payment.
+        final PaymentResult payment;
+        // Why the cart was rejected or its payment failed; null when confirmed.
+        final ApplicationException error;
+
+        private CheckoutResult(Status status, int userId, int bookingId, List<BookingResult> lines, double total,
+                               PaymentResult payment, ApplicationException error) {
+            this.status = status;
+            this.userId = userId;
+            this.bookingId = bookingId;
+            this.lines = lines;
+            this.total = total;
+            this.payment = payment;
+            this.error = error;
+        }
+
+        static CheckoutResult confirmed(BookingService.CartBooking cb, PaymentResult paid) {
+            return new CheckoutResult(Status.CONFIRMED, cb.cart.userId, cb.lines.get(0).bookingId, cb.lines, cb.total, paid, null);
+        }
+
+        static CheckoutResult rejected(int userId, ApplicationException error) {
+            return new CheckoutResult(Status.REJECTED, userId, 0, Collections.emptyList(), 0, null, error);
+        }
+
+        static CheckoutResult unpaid(BookingService.CartBooking cb, PaymentResult paid, ApplicationException error) {
+            return new CheckoutResult(Status.PAYMENT_FAILED, cb.cart.userId, cb.lines.get(0).bookingId, cb.lines, cb.total, paid, error);
+        }
+    }
+
+    static class Booking {
+        int bookingId;
+        final int userId;
+        // Set by BookingService.bookingFor; a directory per booking would start its own verifier pool.
+        UserDirectory users;
+        // Line n lives at index n - 1, so a line lookup is an array access. Guarded by `this`.
+        private final List<BookingLine> lines = new ArrayList<>();
+        private int openLines;
+        private double openTotal;
+        volatile BookingState currentState;
+        final long createdAt;
+        // Append-only transition log, one long per entry: epoch millis << 8 | StateChange ordinal.
+        private long[] history = new long[2];
+        private int historySize;
+
+        public Booking(int id, int userId) {
+            this.bookingId = id;
+            this.userId = userId;
+            this.currentState = PendingState.INSTANCE;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        static final class Transition {
+            final long at;
+            final StateChange change;
+
+            Transition(long at, StateChange change) {
+                this.at = at;
+                this.change = change;
+            }
+        }
+
+        private static final StateChange[] CHANGES = StateChange.values();
+
+        synchronized void transition(BookingState next, StateChange change) {
+            this.currentState = next;
+            if (historySize == history.length) history = Arrays.copyOf(history, historySize * 2);
+            history[historySize++] = System.currentTimeMillis() << 8 | change.ordinal();
+        }
+
+        public String getStateName() { return currentState.stateName(); }
+        public boolean isCancelled() { return currentState == CancelledState.INSTANCE; }
+
+        public synchronized List<Transition> history() {
+            List<Transition> out = new ArrayList<>(historySize);
+            for (int i = 0; i < historySize; i++) out.add(new Transition(history[i] >>> 8, CHANGES[(int) (history[i] & 0xFF)]));
+            return out;
+        }
+
+        synchronized BookingResult addHotel(Hotel found, InventoryEngine.Reservation r, double unitPrice, long priceVersion) {
+            return addLine(r, describe(found), unitPrice, priceVersion);
+        }
+
+        synchronized BookingResult addVehicle(Vehicle sel, InventoryEngine.Reservation r, double unitPrice, long priceVersion) {
+            return addLine(r, describe(sel), unitPrice, priceVersion);
+        }
+
+        // A whole cart's lines under one acquisition of the booking lock; all or none.
+        synchronized List<BookingResult> addAll(List<InventoryEngine.Reservation> items, String[] descriptions,
+                                                double[] unitPrices, long priceVersion) {
+            if (isCancelled()) return null;
+            List<BookingResult> added = new ArrayList<>(items.size());
+            for (int i = 0; i < items.size(); i++) added.add(addLine(items.get(i), descriptions[i], unitPrices[i], priceVersion));
+            return added;
+        }
+
+        static String describe(Hotel h) { return "Hotel " + h.name + ", " + h.location; }
+
+        static String describe(Vehicle v) { return v.vehicleType + " " + v.franchiseName + ", " + v.from + " -> " + v.to; }
+
+        // Null once the booking is cancelled: a cancelled booking never reopens, so the
+        // caller books onto the user's next booking instead (see BookingService.bookingFor).
+        private BookingResult addLine(InventoryEngine.Reservation r, String description, double unitPrice, long priceVersion) {
+            if (isCancelled()) return null;
+            BookingLine line = new BookingLine(lines.size() + 1, r, description, unitPrice, priceVersion);
+            lines.add(line);
+            openLines++;
+            openTotal += line.charge();
+            StateChange change = currentState.confirmBooking(this); // move to Confirmed
+            return new BookingResult(bookingId, line.lineNo, r.kind, r.resourceId, r.qty, line.charge(), priceVersion, change);
+        }
+
+        public synchronized boolean hasBookings() { return openLines > 0; }
+
+        public synchronized double openTotal() { return openTotal; }
+
+        public synchronized BookingLine line(int lineNo) {
+            return lineNo >= 1 && lineNo <= lines.size() ? lines.get(lineNo - 1) : null;
+        }
+
+        public synchronized List<BookingLine> lines() { return new ArrayList<>(lines); }
+
+        public void generateReceipt(int userId, Presenter out) {
+            out.receipt(users == null ? null : users.find(userId), lines());
+        }
+
+        // Cancels one line. Returns it only to the caller that actually cancelled it,
+        // so inventory and money go back exactly once; null if unknown or already cancelled.
+        synchronized BookingLine cancelLine(int lineNo) {
+            BookingLine line = line(lineNo);
+            if (line == null || line.cancelled) return null;
+            line.cancelled = true;
+            openLines--;
+            openTotal -= line.charge();
+            if (openLines == 0) currentState.cancelBooking(this);
+            return line;
+        }
+
+        // Cancels every open line and the booking itself in one step, so no line can be
+        // added in between. Returns the lines this call cancelled, or null if nothing was open.
+        synchronized Cancellation cancelAll() {
+            if (isCancelled() || openLines == 0) return null;
+            List<BookingLine> cancelled = new ArrayList<>(openLines);
+            for (BookingLine line : lines) {
+                if (line.cancelled) continue;
+                line.cancelled = true;
+                cancelled.add(line);
+            }
+            openLines = 0;
+            openTotal = 0;
+            return new Cancellation(cancelled, currentState.cancelBooking(this));
+        }
+
+        static final class Cancellation {
+            final List<BookingLine> lines;
+            final StateChange change;
+
+            Cancellation(List<BookingLine> lines, StateChange change) {
+                this.lines = lines;
+                this.change = change;
+            }
+        }
+    }
+
+    // One booked item: quantity, nights/days and the unit price it was charged at.
+    static final class BookingLine {
+        final int lineNo;
+        final InventoryEngine.Reservation reservation;
+        final String description;
+        final double unitPrice;
+        // Version of the price snapshot unitPrice came from (0 = restored from the journal).
+        final long priceVersion;
+        // Guarded by the owning Booking.
+        boolean cancelled;
+
+        BookingLine(int lineNo, InventoryEngine.Reservation reservation, String description, double unitPrice, long priceVersion) {
+            this.lineNo = lineNo;
+            this.reservation = reservation;
+            this.description = description;
+            this.unitPrice = unitPrice;
+            this.priceVersion = priceVersion;
+        }
+
+        double charge() { return reservation.qty * reservation.days * unitPrice; }
+
+        @Override
+        public String toString() {
+            return String.format("Line %d : %s : qty=%d x %d day(s) @ %.2f = %.2f%s", lineNo, description,
+                    reservation.qty, reservation.days, unitPrice, charge(), cancelled ? " [CANCELLED]" : "");
+        }
+    }
+
+    // ----- Price book: versioned, copy-on-write price snapshots -----
+    // Every hotel and vehicle gets a dense slot when the book is built; prices live
+    // in fixed-size pages indexed by slot. A Snapshot is immutable, so a reader pins
+    // one with a single volatile read and sees a consistent set of prices however
+    // long it holds it. Writers stage changes in a Batch and publish() swaps in a
+    // new Snapshot with the next version. Only touched pages are copied; the rest
+    // are shared with the previous version.
+    static final class PriceBook {
+        static final int PAGE_BITS = 8;
+        static final int PAGE_SIZE = 1 << PAGE_BITS;
+        static final int PAGE_MASK = PAGE_SIZE - 1;
+
+        static final class Snapshot {
+            final long version;
+            final double[][] hotelPages;
+            final double[][] vehiclePages;
+            private final PriceBook book;
+
+            Snapshot(PriceBook book, long version, double[][] hotelPages, double[][] vehiclePages) {
+                this.book = book;
+                this.version = version;
+                this.hotelPages = hotelPages;
+                this.vehiclePages = vehiclePages;
+            }
+
+            // NaN if the hotel was added after the book was built.
+            public double hotelPrice(int hotelId) {
+                Integer slot = book.hotelSlots.get(hotelId);
+                return slot == null ? Double.NaN : hotelPages[slot >>> PAGE_BITS][slot & PAGE_MASK];
+            }
+
+            public double vehiclePrice(int vehicleId) {
+                Integer slot = book.vehicleSlots.get(vehicleId);
+                return slot == null ? Double.NaN : vehiclePages[slot >>> PAGE_BITS][slot & PAGE_MASK];
+            }
+        }
+
+        // Staged changes. NaN marks "unchanged" inside a staged page; touched slots are
+        // also listed so applying a small batch never scans whole pages. A batch begun
+        // from a snapshot only publishes while that snapshot is still current.
+        final class Batch {
+            private final Snapshot expected;
+            private final double[][] hotelPages = new double[PriceBook.this.hotelPages()][];
+            private final double[][] vehiclePages = new double[PriceBook.this.vehiclePages()][];
+            private int[] hotelSlotsTouched = new int[16];
+            private int[] vehicleSlotsTouched = new int[16];
+            private int hotelCount;
+            private int vehicleCount;
+
+            private Batch(Snapshot expected) { this.expected = expected; }
+
+            // True if the batch was computed from a snapshot that has since been replaced.
+            boolean stale() { return expected != null && expected != current; }
+
+            public boolean stageHotel(int hotelId, double price) {
+                Integer slot = hotelSlots.get(hotelId);
+                if (slot == null) return false;
+                stageHotelSlot(slot, price);
+                return true;
+            }
+
+            public boolean stageVehicle(int vehicleId, double price) {
+                Integer slot = vehicleSlots.get(vehicleId);
+                if (slot == null) return false;
+                stageVehicleSlot(slot, price);
+                return true;
+            }
+
+            private void stageHotelSlot(int slot, double price) {
+                if (stage(hotelPages, slot, price)) {
+                    if (hotelCount == hotelSlotsTouched.length) hotelSlotsTouched = Arrays.copyOf(hotelSlotsTouched, hotelCount * 2);
+                    hotelSlotsTouched[hotelCount++] = slot;
+                }
+            }
+
+            private void stageVehicleSlot(int slot, double price) {
+                if (stage(vehiclePages, slot, price)) {
+                    if (vehicleCount == vehicleSlotsTouched.length) vehicleSlotsTouched = Arrays.copyOf(vehicleSlotsTouched, vehicleCount * 2);
+                    vehicleSlotsTouched[vehicleCount++] = slot;
+                }
+            }
+
+            // True if the slot had nothing staged yet.
+            private boolean stage(double[][] pages, int slot, double price) {
+                double[] page = pages[slot >>> PAGE_BITS];
+                if (page == null) {
+                    page = pages[slot >>> PAGE_BITS] = new double[PAGE_SIZE];
+                    Arrays.fill(page, Double.NaN);
+                }
+                boolean fresh = Double.isNaN(page[slot & PAGE_MASK]);
+                page[slot & PAGE_MASK] = price;
+                return fresh;
+            }
+
+            // Stages a whole page at once; NaN entries are left unchanged.
+            void stageHotelPage(int page, double[] values) {
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    if (!Double.isNaN(values[i])) stageHotelSlot((page << PAGE_BITS) + i, values[i]);
+                }
+            }
+
+            void stageVehiclePage(int page, double[] values) {
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    if (!Double.isNaN(values[i])) stageVehicleSlot((page << PAGE_BITS) + i, values[i]);
+                }
+            }
+
+            public int size() { return hotelCount + vehicleCount; }
+
+            int hotelChanges() { return hotelCount; }
+            int vehicleChanges() { return vehicleCount; }
+            int hotelSlot(int i) { return hotelSlotsTouched[i]; }
+            int vehicleSlot(int i) { return vehicleSlotsTouched[i]; }
+
+            double stagedHotel(int slot) { return hotelPages[slot >>> PAGE_BITS][slot & PAGE_MASK]; }
+            double stagedVehicle(int slot) { return vehiclePages[slot >>> PAGE_BITS][slot & PAGE_MASK]; }
+
+            // Null if the batch is stale.
+            public Snapshot publish() { return PriceBook.this.publish(this); }
+        }
+
+        final int[] hotelIds;
+        final int[] vehicleIds;
+        private final IntHashMap<Integer> hotelSlots;
+        private final IntHashMap<Integer> vehicleSlots;
+        private volatile Snapshot current;
+
+        public PriceBook(HotelCatalog hotels, TransportCatalog transports) {
+            List<Hotel> allHotels = hotels.all();
+            hotelIds = new int[allHotels.size()];
+            hotelSlots = new IntHashMap<>(hotelIds.length);
+            double[][] hp = new double[pagesFor(hotelIds.length)][PAGE_SIZE];
+            for (int i = 0; i < hotelIds.length; i++) {
+                Hotel h = allHotels.get(i);
+                hotelIds[i] = h.hotelId;
+                hotelSlots.put(h.hotelId, i);
+                hp[i >>> PAGE_BITS][i & PAGE_MASK] = h.getPricePerRoom();
+            }
+            List<Vehicle> allVehicles = new ArrayList<>(transports.vehicleCount());
+            for (Transportation t : transports.transportations()) {
+                for (Vehicle v : t.vehicles) if (transports.findById(v.vehicleId) == v) allVehicles.add(v);
+            }
+            vehicleIds = new int[allVehicles.size()];
+            vehicleSlots = new IntHashMap<>(vehicleIds.length);
+            double[][] vp = new double[pagesFor(vehicleIds.length)][PAGE_SIZE];
+            for (int i = 0; i < vehicleIds.length; i++) {
+                Vehicle v = allVehicles.get(i);
+                vehicleIds[i] = v.vehicleId;
+                vehicleSlots.put(v.vehicleId, i);
+                vp[i >>> PAGE_BITS][i & PAGE_MASK] = v.price;
+            }
+            current = new Snapshot(this, 1, hp, vp);
+        }
+
+        private static int pagesFor(int n) { return (n + PAGE_SIZE - 1) >>> PAGE_BITS; }
+
+        int hotelPages() { return pagesFor(hotelIds.length); }
+        int vehiclePages() { return pagesFor(vehicleIds.length); }
+
+        public Snapshot current() { return current; }
+
+        public Batch begin() { return new Batch(null); }
+
+        // For changes computed from base: publishing fails if another writer got in first.
+        public Batch beginFrom(Snapshot base) { return new Batch(base); }
+
+        // Writers are serialized here; readers never take this lock.
+        private synchronized Snapshot publish(Batch batch) {
+            if (batch.stale()) return null;
+            Snapshot base = current;
+            if (batch.size() == 0) return base;
+            Snapshot next = new Snapshot(this, base.version + 1,
+                    merge(base.hotelPages, batch.hotelPages), merge(base.vehiclePages, batch.vehiclePages));
+            current = next;
+            return next;
+        }
+
+        private static double[][] merge(double[][] base, double[][] staged) {
+            double[][] out = base.clone();
+            for (int p = 0; p < staged.length; p++) {
+                if (staged[p] == null) continue;
+                double[] page = base[p].clone();
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    if (!Double.isNaN(staged[p][i])) page[i] = staged[p][i];
+                }
+                out[p] = page;
+            }
+            return out;
+        }
+    }
+
+    // ----- Dynamic pricing: rule sets applied to the whole catalogue in one pass -----
+    // A run reads the current price snapshot, computes every new price in parallel
+    // with fork-join (one task per run of pages, so workers never share a page), and
+    // publishes the result as a single new snapshot. Readers keep using the old
+    // snapshot until the swap and never wait on the run. If another writer published
+    // during the pass, the result is discarded and the pass reruns on the new snapshot,
+    // so an admin price change is repriced rather than overwritten. After MAX_ATTEMPTS
+    // lost races the last pass runs under the writer lock, so it cannot lose again;
+    // other writers wait for that one pass instead of starving it.
+    //
+    // Rules are percentages relative to the current price and compound when several
+    // match. Surge tiers then add the highest percentage whose occupancy threshold
+    // the item has reached on the given day. Results are rounded to 2 decimals.
+    static class PricingEngine {
+        // Pages handled by one leaf task.
+        static final int LEAF_PAGES = 4;
+        // Lock-free passes before the last one is run holding the writer lock.
+        static final int MAX_ATTEMPTS = 3;
+
+        enum Field { LOCATION, RATING, VEHICLE_TYPE, FRANCHISE }
+
+        static final class Rule {
+            final Field field;
+            final String value;
+            final int minRating;
+            final int maxRating;
+            final double percent;
+
+            private Rule(Field field, String value, int minRating, int maxRating, double percent) {
+                this.field = field;
+                this.value = value == null ? null : normalizeKey(value);
+                this.minRating = minRating;
+                this.maxRating = maxRating;
+                this.percent = percent;
+            }
+
+            static Rule location(String location, double percent) { return new Rule(Field.LOCATION, location, 0, 0, percent); }
+            static Rule rating(int min, int max, double percent) { return new Rule(Field.RATING, null, min, max, percent); }
+            static Rule vehicleType(String type, double percent) { return new Rule(Field.VEHICLE_TYPE, type, 0, 0, percent); }
+            static Rule franchise(String name, double percent) { return new Rule(Field.FRANCHISE, name, 0, 0, percent); }
+
+            boolean forHotels() { return field == Field.LOCATION || field == Field.RATING; }
+
+            boolean matches(Hotel h) {
+                if (field == Field.RATING) return h.rating >= minRating && h.rating <= maxRating;
+                return field == Field.LOCATION && value.equalsIgnoreCase(h.location.trim());
+            }
+
+            boolean matches(Vehicle v) {
+                if (field == Field.VEHICLE_TYPE) return value.equalsIgnoreCase(v.vehicleType.trim());
+                if (field == Field.FRANCHISE) return value.equalsIgnoreCase(v.franchiseName.trim());
+                // Location rules also cover vehicles departing from that city.
+                return field == Field.LOCATION && value.equalsIgnoreCase(v.from.trim());
+            }
+        }
+
+        static final class SurgeTier {
+            final double occupancy;
+            final double percent;
+
+            SurgeTier(double occupancy, double percent) {
+                this.occupancy = occupancy;
+                this.percent = percent;
+            }
+        }
+
+        static final class Result {
+            final long version;
+            final int hotelsRepriced;
+            final int vehiclesRepriced;
+            final long millis;
+
+            Result(long version, int hotelsRepriced, int vehiclesRepriced, long millis) {
+                this.version = version;
+                this.hotelsRepriced = hotelsRepriced;
+                this.vehiclesRepriced = vehiclesRepriced;
+                this.millis = millis;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("version=%d hotels=%d vehicles=%d millis=%d", version, hotelsRepriced, vehiclesRepriced, millis);
+            }
+        }
+
+        private final BookingService service;
+        private final ForkJoinPool pool;
+
+        public PricingEngine(BookingService service) { this(service, ForkJoinPool.commonPool()); }
+
+        public PricingEngine(BookingService service, ForkJoinPool pool) {
+            this.service = service;
+            this.pool = pool;
+        }
+
+        public Result reprice(List<Rule> rules, List<SurgeTier> surge, int day) {
+            long start = System.nanoTime();
+            List<Rule> hotelRules = new ArrayList<>(), vehicleRules = new ArrayList<>();
+            for (Rule r : rules) {
+                if (r.forHotels()) hotelRules.add(r);
+                if (!r.forHotels() || r.field == Field.LOCATION) vehicleRules.add(r);
+            }
+            PriceBook book = service.prices();
+            PriceBook.Batch[] batch = new PriceBook.Batch[1];
+            for (int attempt = 1; attempt < MAX_ATTEMPTS; attempt++) {
+                batch[0] = run(book, hotelRules, vehicleRules, surge, day);
+                long version = service.publishPrices(batch[0]);
+                if (version >= 0) return result(version, batch[0], start);
+            }
+            long version = service.publishPricesExclusively(() -> batch[0] = run(book, hotelRules, vehicleRules, surge, day));
+            if (version < 0) throw new IllegalStateException("Reprice lost to another price writer while holding the writer lock");
+            return result(version, batch[0], start);
+        }
+
+        private static Result result(long version, PriceBook.Batch batch, long start) {
+            return new Result(version, batch.hotelChanges(), batch.vehicleChanges(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+
+        // One pass over the current snapshot, staged against it.
+        private PriceBook.Batch run(PriceBook book, List<Rule> hotelRules, List<Rule> vehicleRules,
+                                    List<SurgeTier> surge, int day) {
+            PriceBook.Snapshot base = book.current();
+            boolean surging = !surge.isEmpty();
+            double[][] hotelPages = new double[base.hotelPages.length][];
+            double[][] vehiclePages = new double[base.vehiclePages.length][];
+            if (!hotelRules.isEmpty() || surging) {
+                pool.invoke(new PageTask(base.hotelPages, hotelPages, book.hotelIds, 0, hotelPages.length,
+                        slot -> hotelFactor(book.hotelIds[slot], hotelRules, surge, day)));
+            }
+            if (!vehicleRules.isEmpty() || surging) {
+                pool.invoke(new PageTask(base.vehiclePages, vehiclePages, book.vehicleIds, 0, vehiclePages.length,
+                        slot -> vehicleFactor(book.vehicleIds[slot], vehicleRules, surge, day)));
+            }
+            PriceBook.Batch batch = book.beginFrom(base);
+            for (int p = 0; p < hotelPages.length; p++) if (hotelPages[p] != null) batch.stageHotelPage(p, hotelPages[p]);
+            for (int p = 0; p < vehiclePages.length; p++) if (vehiclePages[p] != null) batch.stageVehiclePage(p, vehiclePages[p]);
+            return batch;
+        }
+
+        private double hotelFactor(int hotelId, List<Rule> rules, List<SurgeTier> surge, int day) {
+            Hotel h = service.hotels().findById(hotelId);
+            if (h == null) return 1;
+            double f = 1;
+            for (Rule r : rules) if (r.matches(h)) f *= 1 + r.percent / 100;
+            return f * surgeFactor(InventoryEngine.Kind.HOTEL, hotelId, surge, day);
+        }
+
+        private double vehicleFactor(int vehicleId, List<Rule> rules, List<SurgeTier> surge, int day) {
+            Vehicle v = service.transports().findById(vehicleId);
+            if (v == null) return 1;
+            double f = 1;
+            for (Rule r : rules) if (r.matches(v)) f *= 1 + r.percent / 100;
+            return f * surgeFactor(InventoryEngine.Kind.VEHICLE, vehicleId, surge, day);
+        }
+
+        private double surgeFactor(InventoryEngine.Kind kind, int id, List<SurgeTier> surge, int day) {
+            if (surge.isEmpty()) return 1;
+            double occupancy = service.inventory().occupancy(kind, id, day);
+            double best = 0;
+            for (SurgeTier t : surge) if (occupancy >= t.occupancy && t.percent > best) best = t.percent;
+            return 1 + best / 100;
+        }
+
+        interface SlotFactor { double of(int slot); }
+
+        // Fills out[p] for pages [from, to) with new prices, NaN where unchanged;
+        // pages with no change stay null.
+        private static final class PageTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final double[][] in;
+            private final double[][] out;
+            private final int[] ids;
+            private final int from;
+            private final int to;
+            private final transient SlotFactor factor;
+
+            PageTask(double[][] in, double[][] out, int[] ids, int from, int to, SlotFactor factor) {
+                this.in = in;
+                this.out = out;
+                this.ids = ids;
+                this.from = from;
+                this.to = to;
+                this.factor = factor;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from > LEAF_PAGES) {
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new PageTask(in, out, ids, from, mid, factor), new PageTask(in, out, ids, mid, to, factor));
+                    return;
+                }
+                for (int p = from; p < to; p++) {
+                    double[] page = null;
+                    int base = p << PriceBook.PAGE_BITS;
+                    int n = Math.min(PriceBook.PAGE_SIZE, ids.length - base);
+                    for (int i = 0; i < n; i++) {
+                        double f = factor.of(base + i);
+                        if (f == 1) continue;
+                        double price = Math.round(in[p][i] * f * 100) / 100.0;
+                        if (price == in[p][i]) continue;
+                        if (page == null) {
+                            page = new double[PriceBook.PAGE_SIZE];
+                            Arrays.fill(page, Double.NaN);
+                        }
+                        page[i] = price;
+                    }
+                    out[p] = page;
+                }
+            }
+        }
+
+        // Parses "location:Goa:+10,rating:4-5:-5,type:Bus:+3,franchise:SRS:2".
+        static List<Rule> parseRules(String spec) throws ApplicationException {
+            List<Rule> rules = new ArrayList<>();
+            if (spec == null || spec.isBlank()) return rules;
+            for (String part : spec.split(",")) {
+                String[] f = part.trim().split(":");
+                try {
+                    if (f.length != 3) throw new IllegalArgumentException();
+                    double pct = Double.parseDouble(f[2].trim());
+                    switch (f[0].trim().toLowerCase(Locale.ROOT)) {
+                        case "location": rules.add(Rule.location(f[1], pct)); break;
+                        case "type": rules.add(Rule.vehicleType(f[1], pct)); break;
+                        case "franchise": rules.add(Rule.franchise(f[1], pct)); break;
+                        case "rating": {
+                            String[] range = f[1].split("-");
+                            int min = Integer.parseInt(range[0].trim());
+                            int max = range.length > 1 ? Integer.parseInt(range[1].trim()) : min;
+                            rules.add(Rule.rating(min, max, pct));
+                            break;
+                        }
+                        default: throw new IllegalArgumentException();
+                    }
+                } catch (RuntimeException e) {
+                    throw new ApplicationException(4002, "Invalid pricing rule: " + part.trim());
+                }
+            }
+            return rules;
+        }
+
+        // Parses "0.8:+15,0.95:+30" (occupancy threshold : percent).
+        static List<SurgeTier> parseSurge(String spec) throws ApplicationException {
+            List<SurgeTier> tiers = new ArrayList<>();
+            if (spec == null || spec.isBlank()) return tiers;
+            for (String part : spec.split(",")) {
+                String[] f = part.trim().split(":");
+                try {
+                    tiers.add(new SurgeTier(Double.parseDouble(f[0].trim()), Double.parseDouble(f[1].trim())));
+                } catch (RuntimeException e) {
+                    throw new ApplicationException(4002, "Invalid surge tier: " + part.trim());
+                }
+            }
+            return tiers;
+        }
+    }
+
+    // ----- Booking service: thread-safe entry point for all bookings -----
+    // Catalogs are populated before the service starts taking requests. Bookings and
+    // searches read prices from the current PriceBook snapshot; price changes are
+    // published as new snapshots, so neither side waits on the other.
+    static class BookingService {
+        static final int DEFAULT_SEARCH_CACHE_SIZE = 8192;
+        private static final Metrics.Timer BOOK_HOTEL = Metrics.GLOBAL.timer(Metrics.Op.BOOK_HOTEL);
+        private static final Metrics.Timer BOOK_VEHICLE = Metrics.GLOBAL.timer(Metrics.Op.BOOK_VEHICLE);
+        private static final Metrics.Timer BOOK_ALL = Metrics.GLOBAL.timer(Metrics.Op.BOOK_ALL);
+        private static final Metrics.Timer CANCEL = Metrics.GLOBAL.timer(Metrics.Op.CANCEL);
+        private static final Metrics.Timer HOTEL_SEARCH = Metrics.GLOBAL.timer(Metrics.Op.HOTEL_SEARCH);
+        private static final Metrics.Timer ITINERARY_SEARCH = Metrics.GLOBAL.timer(Metrics.Op.ITINERARY_SEARCH);
+        private static final Metrics.Timer PRICE_PUBLISH = Metrics.GLOBAL.timer(Metrics.Op.PRICE_PUBLISH);
+
+        private final UserDirectory users;
+        private final HotelCatalog hotels;
+        private final TransportCatalog transports;
+        // Each user has at most one open booking; a cancelled one is replaced on the next booking.
+        private final ConcurrentHashMap<Integer, Booking> openByUser = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<Integer, Booking> bookingsById = new ConcurrentHashMap<>();
+        private final AtomicInteger nextBookingId = new AtomicInteger(101);
+        private final InventoryEngine inventory;
+        private volatile BookingJournal journal;
+        // Written only under `this`, after the catalogue objects it mirrors have changed.
+        private volatile HotelColumns columns;
+        private final SearchCache<HotelQuery, HotelMatches> searchCache = new SearchCache<>(DEFAULT_SEARCH_CACHE_SIZE);
+        private volatile ItineraryEngine itineraries;
+        private final PriceBook prices;
+
+        public BookingService(UserDirectory users, HotelCatalog hotels, TransportCatalog transports) {
+            this(users, hotels, transports, new InventoryEngine(hotels, transports));
+        }
+
+        public BookingService(UserDirectory users, HotelCatalog hotels, TransportCatalog transports, InventoryEngine inventory) {
+            this.users = users;
+            this.hotels = hotels;
+            this.transports = transports;
+            this.inventory = inventory;
+            this.prices = new PriceBook(hotels, transports);
+        }
+
+        public HotelCatalog hotels() { return hotels; }
+        public PriceBook prices() { return prices; }
+        public TransportCatalog transports() { return transports; }
+        public InventoryEngine inventory() { return inventory; }
+
+        public void setJournal(BookingJournal journal) { this.journal = journal; }
+
+        // Column view for rating/price searches, built on first use and patched on price
+        // changes. Hotels are only added before the service exists (seed data, mapped
+        // catalogue, feeds), so nothing else ever invalidates it.
+        public HotelColumns searchColumns() {
+            HotelColumns c = columns;
+            if (c == null) {
+                synchronized (this) {
+                    c = columns;
+                    if (c == null) columns = c = HotelColumns.of(hotels);
+                }
+            }
+            return c;
+        }
+
+        public SearchCache.Stats searchCacheStats() { return searchCache.stats(); }
+
+        // Route graph over every vehicle, built on first use. Vehicle price changes are
+        // pushed into it; vehicles added afterwards are not (the catalog is fixed by then).
+        public ItineraryEngine itineraries() {
+            ItineraryEngine e = itineraries;
+            if (e == null) {
+                synchronized (this) {
+                    e = itineraries;
+                    if (e == null) itineraries = e = new ItineraryEngine(transports);
+                }
+            }
+            return e;
+        }
+
+        public ItineraryEngine.Itinerary findItinerary(String source, String destination, ItineraryEngine.Mode mode)
+                throws ApplicationException {
+            return ITINERARY_SEARCH.time(() -> {
+                ItineraryEngine.Itinerary it = itineraries().find(source, destination, mode);
+                if (it == null) throw new ApplicationException(2010, "No route from " + source + " to " + destination + ".");
+                return it;
+            });
+        }
+
+        public List<Hotel> searchHotels(String location, int minRating, double maxPrice, int limit) {
+            long t0 = HOTEL_SEARCH.start();
+            HotelQuery q = new HotelQuery(normalizeKey(location), minRating, maxPrice, limit);
+            List<Hotel> out = searchCache.get(q, q.location, this::runQuery).hotels;
+            HOTEL_SEARCH.success(t0);
+            return out;
+        }
+
+        public List<Hotel> searchHotelsUncached(String location, int minRating, double maxPrice, int limit) {
+            return toHotels(searchColumns().query(location, minRating, maxPrice, limit));
+        }
+
+        // Hotels at `location` with `rooms` free on every night of [fromDay, fromDay + nights),
+        // cheapest first. Not cached: every booking changes the answer.
+        public List<Hotel> searchAvailableHotels(String location, int fromDay, int nights, int rooms,
+                                                 int minRating, double maxPrice, int limit) {
+            long t0 = HOTEL_SEARCH.start();
+            List<Hotel> out = toHotels(searchColumns().query(location, minRating, maxPrice, limit,
+                    id -> inventory.roomsAvailable(id, fromDay, nights, rooms)));
+            HOTEL_SEARCH.success(t0);
+            return out;
+        }
+
+        // Departures on the route with `seats` free on `day`.
+        public List<Vehicle> searchAvailableVehicles(String source, String destination, int day, int seats) {
+            List<Vehicle> out = new ArrayList<>();
+            for (Vehicle v : transports.findByRoute(source, destination)) {
+                if (inventory.seatsAvailable(v.vehicleId, day, seats)) out.add(v);
+            }
+            return out;
+        }
+
+        private List<Hotel> toHotels(int[] ids) {
+            List<Hotel> out = new ArrayList<>(ids.length);
+            for (int id : ids) out.add(hotels.findById(id));
+            return out;
+        }
+
+        private HotelMatches runQuery(HotelQuery q) {
+            HotelColumns c = searchColumns();
+            int[] ids = c.query(q.location, q.minRating, q.maxPrice, q.limit);
+            // A full page hides everything dearer than its last row.
+            double cutoff = ids.length == q.limit && ids.length > 0
+                    ? hotels.findById(ids[ids.length - 1]).getPricePerRoom() : Double.POSITIVE_INFINITY;
+            return new HotelMatches(Collections.unmodifiableList(toHotels(ids)), cutoff);
+        }
+
+        // A hotel's price moving from `before` to `after` can only change a cached search for its
+        // location whose rating filter it passes and whose visible price range either price falls in.
+        private void invalidateSearches(Hotel h, double before, double after) {
+            double cheaper = Math.min(before, after);
+            searchCache.invalidate(normalizeKey(h.location),
+                    (q, m) -> h.rating >= q.minRating && cheaper <= Math.min(q.maxPrice, m.cutoff));
+        }
+
+        // Normalized filtered-search parameters; the search cache key.
+        static final class HotelQuery {
+            final String location;
+            final int minRating;
+            final double maxPrice;
+            final int limit;
+
+            private final int hash;
+
+            HotelQuery(String location, int minRating, double maxPrice, int limit) {
+                this.location = location;
+                this.minRating = minRating;
+                this.maxPrice = maxPrice;
+                this.limit = limit;
+                // Not base 31: that lines up with String.hashCode, so nearby city names and
+                // ratings would collide (see RouteKey).
+                int h = location.hashCode();
+                h = h * 0x9E3779B9 + minRating;
+                h = h * 0x9E3779B9 + Double.hashCode(maxPrice);
+                this.hash = IntHashMap.mix(h * 0x9E3779B9 + limit);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof HotelQuery)) return false;
+                HotelQuery q = (HotelQuery) o;
+                return minRating == q.minRating && limit == q.limit
+                        && Double.compare(maxPrice, q.maxPrice) == 0 && location.equals(q.location);
+            }
+
+            @Override
+            public int hashCode() { return hash; }
+        }
+
+        // Matching hotels, cheapest first, and the price of the last one if the page was full.
+        static final class HotelMatches {
+            final List<Hotel> hotels;
+            final double cutoff;
+
+            HotelMatches(List<Hotel> hotels, double cutoff) {
+                this.hotels = hotels;
+                this.cutoff = cutoff;
+            }
+        }
+
+        // Attaches a reserved item to the user's open booking. The line is added and its
+        // event queued under the booking's lock, the lock cancelAll holds while queueing its
+        // CANCEL, so the journal sees each booking's events in the order they happened.
+        // The booking is only acknowledged once its event is durable; if the journal cannot
+        // take it, the line is cancelled again and the inventory it held is handed back.
+        private BookingResult attach(int userId, InventoryEngine.Reservation r, double unitPrice,
+                                     Function<Booking, BookingResult> add) throws ApplicationException {
+            BookingJournal j = journal;
+            Booking b = bookingFor(userId);
+            BookingResult res;
+            CompletableFuture<Long> appended = null;
+            while (true) {
+                synchronized (b) {
+                    res = add.apply(b);
+                    if (res != null) {
+                        if (j != null) {
+                            appended = j.append(BookingJournal.Event.booking(userId, b.bookingId, r,
+                                    inventory.epochDay(r.fromDay), unitPrice));
+                        }
+                        break;
+                    }
+                }
+                // A cancel that lands first closes b; the line then goes on the user's next booking.
+                b = bookingFor(userId);
+            }
+            if (appended == null) return res;
+            try {
+                BookingJournal.awaitDurable(appended);
+            } catch (UncheckedIOException e) {
+                if (b.cancelLine(res.lineNo) != null) inventory.release(r);
+                throw new ApplicationException(5001, "Could not record booking: " + e.getMessage());
+            }
+            return res;
+        }
+
+        // Rebuilds prices and open bookings from a recovered journal, without re-journaling them.
+        // Bookings keep the ids they were journaled under, so a later cancel still matches.
+        public void restore(BookingJournal.State state) {
+            PriceBook.Batch batch = prices.begin();
+            state.hotelPrices.forEach(batch::stageHotel);
+            state.vehiclePrices.forEach(batch::stageVehicle);
+            apply(batch, false);
+            nextBookingId.accumulateAndGet(state.lastBookingId + 1, Math::max);
+            state.openBookings.forEach((userId, events) -> {
+                Map<Integer, Booking> restored = new TreeMap<>();
+                for (BookingJournal.Event e : events) {
+                    Booking b = restored.computeIfAbsent(e.bookingId, id -> {
+                        Booking nb = new Booking(id, userId);
+                        nb.users = users;
+                        bookingsById.put(id, nb);
+                        return nb;
+                    });
+                    InventoryEngine.Reservation stored = e.reservation();
+                    InventoryEngine.Reservation r = new InventoryEngine.Reservation(stored.kind, stored.resourceId,
+                            inventory.dayOfEpoch(stored.fromDay), stored.days, stored.qty);
+                    if (!inventory.reserveRemaining(r)) continue;
+                    if (r.kind == InventoryEngine.Kind.HOTEL) {
+                        Hotel h = hotels.findById(r.resourceId);
+                        if (h != null) b.addHotel(h, r, e.amount, 0);
+                    } else {
+                        Vehicle v = transports.findById(r.resourceId);
+                        if (v != null) b.addVehicle(v, r, e.amount, 0);
+                    }
+                }
+                // The newest one stays open for further lines, as it was before the restart.
+                Booking open = null;
+                for (Booking b : restored.values()) if (b.hasBookings()) open = b;
+                if (open != null) openByUser.put(userId, open);
+            });
+        }
+
+        // The user's open booking, starting a new one (with a new id) if there is none
+        // or the last one was cancelled.
+        public Booking bookingFor(int userId) {
+            return openByUser.compute(userId, (id, open) -> {
+                if (open != null && !open.isCancelled()) return open;
+                Booking b = new Booking(nextBookingId.getAndIncrement(), id);
+                b.users = users;
+                bookingsById.put(b.bookingId, b);
+                return b;
+            });
+        }
+
+        public Booking existingBooking(int userId) { return openByUser.get(userId); }
+
+        public Booking findBooking(int bookingId) { return bookingsById.get(bookingId); }
+
+        // The engine counts days from the date it was built; this is today's day, so it
+        // moves on at midnight instead of staying at day 0.
+        public int today() { return inventory.today(); }
+
+        // A calendar date from a request or the console as an engine day. Past dates and
+        // dates beyond the booking horizon are refused.
+        public int dayOf(LocalDate date) throws ApplicationException {
+            int day = inventory.dayOf(date), today = today();
+            if (day < today) throw new ApplicationException(4002, "Date is in the past: " + date);
+            if (day >= today + inventory.horizon()) throw new ApplicationException(4002, "Date is beyond the booking horizon: " + date);
+            return day;
+        }
+
+        public int dayOf(String isoDate) throws ApplicationException {
+            try {
+                return dayOf(LocalDate.parse(isoDate.trim()));
+            } catch (DateTimeParseException e) {
+                throw new ApplicationException(4002, "Invalid date (expected yyyy-MM-dd): " + isoDate);
+            }
+        }
+
+        // Books tonight for one night.
+        public BookingResult bookHotel(int userId, int hotelId, int rooms) throws ApplicationException {
+            return bookHotel(userId, hotelId, rooms, today(), 1);
+        }
+
+        public BookingResult bookHotel(int userId, int hotelId, int rooms, int fromDay, int nights) throws ApplicationException {
+            return BOOK_HOTEL.time(() -> reserveHotel(userId, hotelId, rooms, fromDay, nights));
+        }
+
+        private BookingResult reserveHotel(int userId, int hotelId, int rooms, int fromDay, int nights) throws ApplicationException {
+            if (rooms <= 0 || nights <= 0) throw new ApplicationException(2003, "Quantity must be positive.");
+            Hotel h = hotels.findById(hotelId);
+            if (h == null) throw new ApplicationException(2001, "Hotel not found.");
+            InventoryEngine.Reservation r = InventoryEngine.Reservation.rooms(hotelId, fromDay, nights, rooms);
+            if (!inventory.reserve(r)) throw new ApplicationException(2005, "Not enough rooms available.");
+            PriceBook.Snapshot snap = prices.current();
+            double unitPrice = priceOf(snap.hotelPrice(hotelId), h.getPricePerRoom());
+            return attach(userId, r, unitPrice, b -> b.addHotel(h, r, unitPrice, snap.version));
+        }
+
+        public BookingResult bookVehicle(int userId, int vehicleId, int qty) throws ApplicationException {
+            return bookVehicle(userId, vehicleId, qty, today());
+        }
+
+        public BookingResult bookVehicle(int userId, int vehicleId, int qty, int day) throws ApplicationException {
+            return BOOK_VEHICLE.time(() -> reserveVehicle(userId, vehicleId, qty, day));
+        }
+
+        private BookingResult reserveVehicle(int userId, int vehicleId, int qty, int day) throws ApplicationException {
+            if (qty <= 0) throw new ApplicationException(2003, "Quantity must be positive.");
+            Vehicle v = transports.findById(vehicleId);
+            if (v == null) throw new ApplicationException(2002, "Vehicle not found.");
+            InventoryEngine.Reservation r = InventoryEngine.Reservation.seats(vehicleId, day, qty);
+            if (!inventory.reserve(r)) throw new ApplicationException(2006, "Not enough seats available.");
+            PriceBook.Snapshot snap = prices.current();
+            double unitPrice = priceOf(snap.vehiclePrice(vehicleId), v.price);
+            return attach(userId, r, unitPrice, b -> b.addVehicle(v, r, unitPrice, snap.version));
+        }
+
+        // Reserves every item or none of them, then records them all on the user's booking.
+        public double bookAll(int userId, List<InventoryEngine.Reservation> items) throws ApplicationException {
+            return BOOK_ALL.time(() -> {
+                CartBooking booked = bookCarts(Collections.singletonList(new Cart(userId, items))).get(0);
+                if (booked.error != null) throw booked.error;
+                return booked.total;
+            });
+        }
+
+        // Books many carts in one pass: each cart is all-or-nothing on its own, every
+        // cart is priced from the same snapshot, each cart's lines are added and its
+        // journal records queued under a single acquisition of its booking's lock (see
+        // attach), and all records go out before any is waited on, so they share group
+        // commits. Results are in input order.
+        public List<CartBooking> bookCarts(List<Cart> carts) {
+            List<CartBooking> out = new ArrayList<>(carts.size());
+            for (Cart cart : carts) out.add(reserveCart(cart));
+            PriceBook.Snapshot snap = prices.current();
+            BookingJournal j = journal;
+            List<CompletableFuture<Long>> pending = new ArrayList<>(carts.size());
+            for (CartBooking cb : out) {
+                if (cb.error != null) {
+                    pending.add(null);
+                    continue;
+                }
+                List<InventoryEngine.Reservation> items = cb.cart.items;
+                cb.unitPrices = new double[items.size()];
+                cb.descriptions = new String[items.size()];
+                for (int i = 0; i < items.size(); i++) {
+                    InventoryEngine.Reservation r = items.get(i);
+                    if (r.kind == InventoryEngine.Kind.HOTEL) {
+                        Hotel h = hotels.findById(r.resourceId);
+                        cb.unitPrices[i] = priceOf(snap.hotelPrice(r.resourceId), h.getPricePerRoom());
+                        cb.descriptions[i] = Booking.describe(h);
+                    } else {
+                        Vehicle v = transports.findById(r.resourceId);
+                        cb.unitPrices[i] = priceOf(snap.vehiclePrice(r.resourceId), v.price);
+                        cb.descriptions[i] = Booking.describe(v);
+                    }
+                }
+                Booking b = bookingFor(cb.cart.userId);
+                CompletableFuture<Long> appended = null;
+                while (true) {
+                    synchronized (b) {
+                        List<BookingResult> added = b.addAll(items, cb.descriptions, cb.unitPrices, snap.version);
+                        if (added != null) {
+                            cb.lines = added;
+                            // One group per cart, so replay never restores part of a cart this call gave back.
+                            if (j != null) appended = j.appendGroup(bookingEvents(cb, b.bookingId));
+                            break;
+                        }
+                    }
+                    b = bookingFor(cb.cart.userId);
+                }
+                cb.booking = b;
+                pending.add(appended);
+            }
+            for (int c = 0; c < out.size(); c++) {
+                CartBooking cb = out.get(c);
+                CompletableFuture<Long> appended = pending.get(c);
+                if (appended != null) {
+                    try {
+                        BookingJournal.awaitDurable(appended);
+                    } catch (UncheckedIOException e) {
+                        for (BookingResult line : cb.lines) {
+                            BookingLine undone = cb.booking.cancelLine(line.lineNo);
+                            if (undone != null) inventory.release(undone.reservation);
+                        }
+                        cb.lines = Collections.emptyList();
+                        cb.error = new ApplicationException(5001, "Could not record booking: " + e.getMessage());
+                        continue;
+                    }
+                }
+                for (BookingResult line : cb.lines) cb.total += line.charge;
+            }
+            return out;
+        }
+
+        private List<BookingJournal.Event> bookingEvents(CartBooking cb, int bookingId) {
+            List<InventoryEngine.Reservation> items = cb.cart.items;
+            List<BookingJournal.Event> events = new ArrayList<>(items.size());
+            for (int i = 0; i < items.size(); i++) {
+                InventoryEngine.Reservation r = items.get(i);
+                events.add(BookingJournal.Event.booking(cb.cart.userId, bookingId, r, inventory.epochDay(r.fromDay), cb.unitPrices[i]));
+            }
+            return events;
+        }
+
+        // Checks and reserves one cart; on failure nothing is held and the error is recorded.
+        private CartBooking reserveCart(Cart cart) {
+            CartBooking cb = new CartBooking(cart);
+            if (cart.items.isEmpty()) {
+                cb.error = new ApplicationException(2004, "Cart is empty.");
+                return cb;
+            }
+            for (InventoryEngine.Reservation r : cart.items) {
+                if (r.qty <= 0 || r.days <= 0) {
+                    cb.error = new ApplicationException(2003, "Quantity must be positive.");
+                    return cb;
+                }
+                boolean hotel = r.kind == InventoryEngine.Kind.HOTEL;
+                if (hotel ? hotels.findById(r.resourceId) == null : transports.findById(r.resourceId) == null) {
+                    cb.error = new ApplicationException(hotel ? 2001 : 2002, hotel ? "Hotel not found." : "Vehicle not found.");
+                    return cb;
+                }
+            }
+            if (!inventory.reserveAll(cart.items)) cb.error = new ApplicationException(2007, "Not enough capacity for every item.");
+            return cb;
+        }
+
+        // Outcome of booking one cart: its lines and total, or the error that stopped it.
+        static final class CartBooking {
+            final Cart cart;
+            List<BookingResult> lines = Collections.emptyList();
+            double total;
+            ApplicationException error;
+            private Booking booking;
+            private double[] unitPrices;
+            private String[] descriptions;
+
+            CartBooking(Cart cart) { this.cart = cart; }
+        }
+
+        public CancelResult cancel(int userId) throws ApplicationException {
+            return CANCEL.time(() -> cancelAll(userId));
+        }
+
+        private CancelResult cancelAll(int userId) throws ApplicationException {
+            Booking b = openByUser.get(userId);
+            if (b == null) throw new ApplicationException(2004, "No bookings to cancel.");
+            Booking.Cancellation c;
+            double refund = 0;
+            CompletableFuture<Long> appended = null;
+            // Queued under the lock attach uses, so it lands after every line it cancels.
+            synchronized (b) {
+                c = b.cancelAll();
+                if (c == null) throw new ApplicationException(2004, "No bookings to cancel.");
+                for (BookingLine line : c.lines) refund += line.charge();
+                BookingJournal j = journal;
+                if (j != null) appended = j.append(BookingJournal.Event.cancel(userId, b.bookingId, refund));
+            }
+            for (BookingLine line : c.lines) inventory.release(line.reservation);
+            if (appended != null) BookingJournal.awaitDurable(appended);
+            return new CancelResult(b.bookingId, 0, refund, c.change);
+        }
+
+        // Cancels a single line of the user's open booking and refunds just that line.
+        public CancelResult cancelLine(int userId, int lineNo) throws ApplicationException {
+            return CANCEL.time(() -> cancelOneLine(openByUser.get(userId), userId, lineNo));
+        }
+
+        // Cancels a line of one specific booking, which need not be the user's open one any more.
+        public CancelResult cancelLine(int userId, int bookingId, int lineNo) throws ApplicationException {
+            return CANCEL.time(() -> {
+                Booking b = bookingsById.get(bookingId);
+                return cancelOneLine(b != null && b.userId == userId ? b : null, userId, lineNo);
+            });
+        }
+
+        private CancelResult cancelOneLine(Booking b, int userId, int lineNo) throws ApplicationException {
+            if (b == null) throw new ApplicationException(2011, "No open booking line " + lineNo + ".");
+            BookingLine line;
+            CompletableFuture<Long> appended = null;
+            synchronized (b) {
+                line = b.cancelLine(lineNo);
+                if (line == null) throw new ApplicationException(2011, "No open booking line " + lineNo + ".");
+                InventoryEngine.Reservation r = line.reservation;
+                BookingJournal j = journal;
+                if (j != null) {
+                    appended = j.append(BookingJournal.Event.cancelLine(userId, b.bookingId, r, inventory.epochDay(r.fromDay),
+                            line.charge()));
+                }
+            }
+            inventory.release(line.reservation);
+            if (appended != null) BookingJournal.awaitDurable(appended);
+            return new CancelResult(b.bookingId, lineNo, line.charge(),
+                    b.isCancelled() ? StateChange.CONFIRMED_TO_CANCELLED : StateChange.LINE_CANCELLED);
+        }
+
+        public boolean updateHotelPrice(int hotelId, double price) {
+            PriceBook.Batch batch = prices.begin();
+            if (!batch.stageHotel(hotelId, price)) return false;
+            apply(batch, true);
+            return true;
+        }
+
+        public boolean updateVehiclePrice(int vehicleId, double price) {
+            PriceBook.Batch batch = prices.begin();
+            if (!batch.stageVehicle(vehicleId, price)) return false;
+            apply(batch, true);
+            return true;
+        }
+
+        // Publishes every staged change as one new snapshot and returns its version,
+        // or -1 if the batch was begun from a snapshot that is no longer current.
+        public long publishPrices(PriceBook.Batch batch) {
+            PriceBook.Snapshot after = apply(batch, true);
+            return after == null ? -1 : after.version;
+        }
+
+        // Builds the batch and publishes it under the writer lock, so no other writer can
+        // make it stale in between. For a pass that keeps losing the race; other writers
+        // wait for the whole pass, readers still never do.
+        public long publishPricesExclusively(Supplier<PriceBook.Batch> pass) {
+            synchronized (prices) {
+                return publishPrices(pass.get());
+            }
+        }
+
+        // Writers only: keeps the catalogue mirror in publish order. Readers never take it.
+        private PriceBook.Snapshot apply(PriceBook.Batch batch, boolean journaled) {
+            long t0 = PRICE_PUBLISH.start();
+            try {
+                return applyLocked(batch, journaled);
+            } finally {
+                PRICE_PUBLISH.success(t0);
+            }
+        }
+
+        private PriceBook.Snapshot applyLocked(PriceBook.Batch batch, boolean journaled) {
+            synchronized (prices) {
+                // Checked before journaling so a rejected batch leaves no events behind.
+                if (batch.stale()) return null;
+                // Durable before anyone can read the new prices; the lock keeps journal order = publish order.
+                if (journaled) journalPrices(batch);
+                PriceBook.Snapshot after = batch.publish();
+                if (batch.size() == 0) return after;
+                // Mirror into the catalogue objects for listings and the itinerary graph.
+                ItineraryEngine routes = itineraries;
+                double[] previous = new double[batch.hotelChanges()];
+                for (int i = 0; i < batch.hotelChanges(); i++) {
+                    int slot = batch.hotelSlot(i);
+                    double price = batch.stagedHotel(slot);
+                    Hotel h = hotels.findById(prices.hotelIds[slot]);
+                    if (h == null) continue;
+                    previous[i] = h.getPricePerRoom();
+                    h.setPricePerRoom(price);
+                }
+                for (int i = 0; i < batch.vehicleChanges(); i++) {
+                    int slot = batch.vehicleSlot(i);
+                    double price = batch.stagedVehicle(slot);
+                    int vehicleId = prices.vehicleIds[slot];
+                    transports.updatePrice(vehicleId, price);
+                    if (routes != null) routes.onPriceChange(vehicleId, price);
+                }
+                if (batch.hotelChanges() > 0) {
+                    List<Hotel> changed = new ArrayList<>(batch.hotelChanges());
+                    for (int i = 0; i < batch.hotelChanges(); i++) {
+                        Hotel h = hotels.findById(prices.hotelIds[batch.hotelSlot(i)]);
+                        if (h != null) changed.add(h);
+                    }
+                    // Prices are already in the Hotel objects, and patching writes absolute
+                    // prices, so a view built concurrently from half-updated objects is fixed
+                    // up here too. Only then are cached results dropped, so a search that
+                    // misses afterwards cannot see old prices.
+                    synchronized (this) {
+                        HotelColumns c = columns;
+                        columns = c == null ? null : c.withPrices(changed);
+                    }
+                    for (int i = 0; i < batch.hotelChanges(); i++) {
+                        int slot = batch.hotelSlot(i);
+                        Hotel h = hotels.findById(prices.hotelIds[slot]);
+                        if (h != null) invalidateSearches(h, previous[i], batch.stagedHotel(slot));
+                    }
+                }
+                return after;
+            }
+        }
+
+        // One journal wait for the whole batch rather than one group commit per price.
+        private void journalPrices(PriceBook.Batch batch) {
+            BookingJournal j = journal;
+            if (j == null || batch.size() == 0) return;
+            List<BookingJournal.Event> events = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.hotelChanges(); i++) {
+                int slot = batch.hotelSlot(i);
+                int hotelId = prices.hotelIds[slot];
+                if (hotels.findById(hotelId) != null) {
+                    events.add(BookingJournal.Event.price(BookingJournal.Type.HOTEL_PRICE, hotelId, batch.stagedHotel(slot)));
+                }
+            }
+            for (int i = 0; i < batch.vehicleChanges(); i++) {
+                int slot = batch.vehicleSlot(i);
+                events.add(BookingJournal.Event.price(BookingJournal.Type.VEHICLE_PRICE, prices.vehicleIds[slot], batch.stagedVehicle(slot)));
+            }
+            j.appendAllDurably(events);
+        }
+
+        // Items added after the price book was built fall back to the catalogue object.
+        private static double priceOf(double fromSnapshot, double fromCatalog) {
+            return Double.isNaN(fromSnapshot) ? fromCatalog : fromSnapshot;
+        }
+    }
+
+    // ----- Payment -----
+    // ----- Wallet ledger: per-user balances in minor units, sharded -----
+    // Each account's balance is an AtomicLong of paise/cents, so debits are a CAS
+    // loop that can never take a balance below zero and never lose an update. Users
+    // hash onto shards; each shard buffers its ledger entries and hands them to the
+    // settlement sink a batch at a time, so there is no global lock on money movement.
+    // The default sink keeps the most recent batches in memory; setSink swaps in an
+    // audit consumer. Either way nothing grows without bound.
+    static class WalletLedger {
+        static final int BATCH = 256;
+        // Settled batches the default sink holds before dropping the oldest.
+        static final int RETAINED_BATCHES = 64;
+        // Entries are packed as (userId, delta, balanceAfter) longs.
+        static final int ENTRY_LONGS = 3;
+
+        static long toMinor(double amount) { return Math.round(amount * 100); }
+        static double toMajor(long minor) { return minor / 100.0; }
+
+        private static final class Shard {
+            final ConcurrentHashMap<Integer, AtomicLong> accounts = new ConcurrentHashMap<>();
+            private long[] pending = new long[BATCH * ENTRY_LONGS];
+            private int count;
+        }
+
+        // Bounded in-memory settlement log: the last RETAINED_BATCHES batches, oldest first.
+        static final class RecentBatches implements Consumer<long[]> {
+            private final ArrayDeque<long[]> batches = new ArrayDeque<>();
+
+            @Override
+            public synchronized void accept(long[] batch) {
+                if (batches.size() == RETAINED_BATCHES) batches.removeFirst();
+                batches.addLast(batch);
+            }
+
+            public synchronized List<long[]> batches() { return new ArrayList<>(batches); }
+        }
+
+        private final Shard[] shards;
+        private final int mask;
+        private final long openingMinor;
+        private final RecentBatches recent = new RecentBatches();
+        private final LongAdder settledEntries = new LongAdder();
+        private volatile Consumer<long[]> sink = recent;
+
+        public WalletLedger(long openingMinor) {
+            int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+            shards = new Shard[n];
+            for (int i = 0; i < n; i++) shards[i] = new Shard();
+            mask = n - 1;
+            this.openingMinor = openingMinor;
+        }
+
+        // Receives every settled batch, ENTRY_LONGS longs per entry, on the thread that filled it.
+        public void setSink(Consumer<long[]> sink) { this.sink = sink; }
+
+        public RecentBatches recent() { return recent; }
+
+        private Shard shardOf(int userId) { return shards[IntHashMap.mix(userId) & mask]; }
+
+        private AtomicLong account(Shard shard, int userId) {
+            return shard.accounts.computeIfAbsent(userId, k -> new AtomicLong(openingMinor));
+        }
+
+        public long balance(int userId) { return account(shardOf(userId), userId).get(); }
+
+        // New balance, or -1 if the account holds less than `amount`.
+        public long debit(int userId, long amount) {
+            Shard shard = shardOf(userId);
+            AtomicLong acc = account(shard, userId);
+            long b;
+            do {
+                b = acc.get();
+                if (b < amount) return -1;
+            } while (!acc.compareAndSet(b, b - amount));
+            record(shard, userId, -amount, b - amount);
+            return b - amount;
+        }
+
+        public long credit(int userId, long amount) {
+            Shard shard = shardOf(userId);
+            long after = account(shard, userId).addAndGet(amount);
+            record(shard, userId, amount, after);
+            return after;
+        }
+
+        private void record(Shard shard, int userId, long delta, long after) {
+            long[] full = null;
+            synchronized (shard) {
+                int i = shard.count * ENTRY_LONGS;
+                shard.pending[i] = userId;
+                shard.pending[i + 1] = delta;
+                shard.pending[i + 2] = after;
+                if (++shard.count == BATCH) {
+                    full = shard.pending;
+                    shard.pending = new long[BATCH * ENTRY_LONGS];
+                    shard.count = 0;
+                }
+            }
+            if (full != null) publish(full, BATCH);
+        }
+
+        private void publish(long[] batch, int entries) {
+            sink.accept(batch.length == entries * ENTRY_LONGS ? batch : Arrays.copyOf(batch, entries * ENTRY_LONGS));
+            settledEntries.add(entries);
+        }
+
+        // Hands every shard's partial batch to the sink, e.g. on shutdown.
+        public void settle() {
+            for (Shard shard : shards) {
+                long[] part;
+                int n;
+                synchronized (shard) {
+                    if (shard.count == 0) continue;
+                    part = shard.pending;
+                    n = shard.count;
+                    shard.pending = new long[BATCH * ENTRY_LONGS];
+                    shard.count = 0;
+                }
+                publish(part, n);
+            }
+        }
+
+        public long settledEntries() { return settledEntries.sum(); }
+    }
+
+    // ----- External payment gateway and async pipeline -----
+    // A gateway charges `amountMinor` once per idempotency key: calling it again with
+    // the same key must return the original outcome rather than charge twice. Errors
+    // 6001 (unavailable) and timeouts are treated as transient and retried; 6002
+    // (declined) is final.
+    interface PaymentGateway {
+        CompletableFuture<String> charge(String idempotencyKey, int userId, long amountMinor);
+    }
+
+    // Local stand-in with configurable latency and failure rate. Completions run on a
+    // single scheduler thread, so a slow "gateway" never occupies a caller's thread.
+    static class SimulatedGateway implements PaymentGateway {
+        static final long SETTLED_RETENTION_MILLIS = 60_000;
+
+        private final long latencyMillis;
+        private final double failureRate;
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gateway-sim");
+            t.setDaemon(true);
+            return t;
+        });
+        private final ConcurrentHashMap<String, CompletableFuture<String>> byKey = new ConcurrentHashMap<>();
+        private final LongAdder charges = new LongAdder();
+
+        public SimulatedGateway(long latencyMillis, double failureRate) {
+            this.latencyMillis = latencyMillis;
+            this.failureRate = failureRate;
+        }
+
+        @Override
+        public CompletableFuture<String> charge(String idempotencyKey, int userId, long amountMinor) {
+            // Registered before it can settle, so a failure is never left cached under its key
+            // (settling inside computeIfAbsent would run the removal before the insert).
+            CompletableFuture<String> f = new CompletableFuture<>();
+            CompletableFuture<String> prior = byKey.putIfAbsent(idempotencyKey, f);
+            if (prior != null) return prior;
+            Runnable settle = () -> {
+                if (ThreadLocalRandom.current().nextDouble() < failureRate) {
+                    byKey.remove(idempotencyKey, f); // a failed attempt may be retried under the same key
+                    f.completeExceptionally(new ApplicationException(6001, "Payment gateway unavailable."));
+                } else {
+                    charges.increment();
+                    f.complete("txn-" + idempotencyKey);
+                    // Replays of a settled charge only matter while its caller may still retry.
+                    timer.schedule(() -> byKey.remove(idempotencyKey, f), SETTLED_RETENTION_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            };
+            if (latencyMillis > 0) timer.schedule(settle, latencyMillis, TimeUnit.MILLISECONDS);
+            else settle.run();
+            return f;
+        }
+
+        public long charges() { return charges.sum(); }
+    }
+
+    // Bounds how many external charges are in flight, times each attempt out, and
+    // retries transient failures with exponential backoff under one idempotency key.
+    // Nothing here blocks: callers get a future and decide whether to wait.
+    static class PaymentPipeline {
+        static final int DEFAULT_MAX_IN_FLIGHT = 256;
+        static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+        static final int DEFAULT_MAX_ATTEMPTS = 3;
+        static final long DEFAULT_BACKOFF_MILLIS = 50;
+
+        private final PaymentGateway gateway;
+        private final Semaphore inFlight;
+        private final int maxInFlight;
+        private final long timeoutMillis;
+        private final int maxAttempts;
+        private final long backoffMillis;
+        private final String keyPrefix = Long.toHexString(System.nanoTime()) + "-";
+        private final AtomicLong nextKey = new AtomicLong();
+
+        public PaymentPipeline(PaymentGateway gateway) {
+            this(gateway, DEFAULT_MAX_IN_FLIGHT, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_ATTEMPTS, DEFAULT_BACKOFF_MILLIS);
+        }
+
+        public PaymentPipeline(PaymentGateway gateway, int maxInFlight, long timeoutMillis, int maxAttempts, long backoffMillis) {
+            this.gateway = gateway;
+            this.inFlight = new Semaphore(maxInFlight);
+            this.maxInFlight = maxInFlight;
+            this.timeoutMillis = timeoutMillis;
+            this.maxAttempts = maxAttempts;
+            this.backoffMillis = backoffMillis;
+        }
+
+        // Completes with the gateway's transaction id, or exceptionally with an ApplicationException.
+        public CompletableFuture<String> charge(int userId, long amountMinor) {
+            if (!inFlight.tryAcquire()) {
+                return CompletableFuture.failedFuture(new ApplicationException(6003, "Payment gateway busy. Try again."));
+            }
+            String key = keyPrefix + nextKey.incrementAndGet();
+            CompletableFuture<String> result = attempt(key, userId, amountMinor, 1);
+            result.whenComplete((txn, e) -> inFlight.release());
+            return result;
+        }
+
+        private CompletableFuture<String> attempt(String key, int userId, long amountMinor, int n) {
+            CompletableFuture<String> call;
+            try {
+                call = gateway.charge(key, userId, amountMinor);
+            } catch (RuntimeException e) {
+                call = CompletableFuture.failedFuture(e);
+            }
+            return call.copy().orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).handle((txn, e) -> {
+                if (e == null) return CompletableFuture.completedFuture(txn);
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (n >= maxAttempts || !retryable(cause)) return CompletableFuture.<String>failedFuture(asApplicationException(cause));
+                Executor later = CompletableFuture.delayedExecutor(backoffMillis << (n - 1), TimeUnit.MILLISECONDS);
+                return CompletableFuture.supplyAsync(() -> key, later)
+                        .thenCompose(k -> attempt(k, userId, amountMinor, n + 1));
+            }).thenCompose(Function.identity());
+        }
+
+        private static boolean retryable(Throwable t) {
+            return t instanceof TimeoutException
+                    || (t instanceof ApplicationException && ((ApplicationException) t).getErrNo() == 6001);
+        }
+
+        private static ApplicationException asApplicationException(Throwable t) {
+            if (t instanceof ApplicationException) return (ApplicationException) t;
+            if (t instanceof TimeoutException) return new ApplicationException(6004, "Payment gateway timed out.");
+            return new ApplicationException(6001, "Payment gateway unavailable.");
+        }
+
+        public int inFlight() { return maxInFlight - inFlight.availablePermits(); }
+    }
+
+    static class Payment {
+        private static final Metrics.Timer PAYMENT = Metrics.GLOBAL.timer(Metrics.Op.PAYMENT);
+
+        int paymentId;
+        String paymentMode;
+        // Opening balance every new wallet starts with.
+        double wallet;
+        private final WalletLedger ledger;
+
+        public Payment(int id, String mode, double wallet) {
+            this.paymentId = id;
+            this.paymentMode = mode;
+            this.wallet = wallet;
+            this.ledger = new WalletLedger(WalletLedger.toMinor(wallet));
+        }
+
+        enum Method { WALLET, EXTERNAL }
+
+        private volatile BookingJournal journal;
+        private volatile PaymentPipeline pipeline = new PaymentPipeline(new SimulatedGateway(0, 0));
+
+        public void setJournal(BookingJournal journal) { this.journal = journal; }
+
+        public void setPipeline(PaymentPipeline pipeline) { this.pipeline = pipeline; }
+
+        WalletLedger ledger() { return ledger; }
+
+        // Waits for the outcome; a failed external charge comes back as PAYMENT_FAILED.
+        public PaymentResult makePayment(int userId, double amount, Method method) {
+            try {
+                return makePaymentAsync(userId, amount, method).join();
+            } catch (CompletionException e) {
+                return new PaymentResult(PaymentResult.Status.PAYMENT_FAILED, amount, balance(userId));
+            }
+        }
+
+        // Wallet payments complete immediately. External ones go through the pipeline
+        // and complete exceptionally with an ApplicationException if the gateway fails.
+        public CompletableFuture<PaymentResult> makePaymentAsync(int userId, double amount, Method method) {
+            long t0 = PAYMENT.start();
+            CompletableFuture<PaymentResult> result = charge(userId, amount, method);
+            // Wallet payments are already done here; external ones are timed to completion.
+            result.whenComplete((r, e) -> {
+                if (e != null) PAYMENT.failure(t0, errNo(e));
+                else if (r.status == PaymentResult.Status.INSUFFICIENT_FUNDS) PAYMENT.failure(t0, 2009);
+                else PAYMENT.success(t0);
+            });
+            return result;
+        }
+
+        private static int errNo(Throwable e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            return cause instanceof ApplicationException ? ((ApplicationException) cause).getErrNo() : 6001;
+        }
+
+        // A failure to journal comes back as a failed future (5001), never as a throw.
+        private CompletableFuture<PaymentResult> charge(int userId, double amount, Method method) {
+            if (method == Method.WALLET) {
+                long minor = WalletLedger.toMinor(amount);
+                long after = ledger.debit(userId, minor);
+                if (after < 0) {
+                    return CompletableFuture.completedFuture(
+                            new PaymentResult(PaymentResult.Status.INSUFFICIENT_FUNDS, amount, balance(userId)));
+                }
+                try {
+                    journal(BookingJournal.Event.payment(userId, amount, method));
+                } catch (UncheckedIOException e) {
+                    // Not recorded, so it did not happen: the debit goes back.
+                    ledger.credit(userId, minor);
+                    return CompletableFuture.failedFuture(unrecorded("payment", e));
+                }
+                return CompletableFuture.completedFuture(
+                        new PaymentResult(PaymentResult.Status.PAID_WALLET, amount, WalletLedger.toMajor(after)));
+            }
+            // Journal off the gateway's completion thread; the fsync can take a while.
+            return pipeline.charge(userId, WalletLedger.toMinor(amount)).thenApplyAsync(txn -> {
+                try {
+                    journal(BookingJournal.Event.payment(userId, amount, method));
+                } catch (UncheckedIOException e) {
+                    throw new CompletionException(unrecorded("payment", e));
+                }
+                return new PaymentResult(PaymentResult.Status.PAID_EXTERNAL, amount, balance(userId));
+            });
+        }
+
+        private static ApplicationException unrecorded(String what, UncheckedIOException e) {
+            return new ApplicationException(5001, "Could not record " + what + ": " + e.getMessage());
+        }
+
+        private void journal(BookingJournal.Event e) {
+            BookingJournal j = journal;
+            if (j != null) j.appendDurably(e);
+        }
+
+        // Journaled before the credit: a refund that cannot be recorded is not paid out.
+        public PaymentResult refundPayment(int userId, double amount) throws ApplicationException {
+            try {
+                journal(BookingJournal.Event.refund(userId, amount));
+            } catch (UncheckedIOException e) {
+                throw unrecorded("refund", e);
+            }
+            long after = ledger.credit(userId, WalletLedger.toMinor(amount));
+            return new PaymentResult(PaymentResult.Status.REFUNDED, amount, WalletLedger.toMajor(after));
+        }
+
+        public void restore(BookingJournal.State state) {
+            for (Map.Entry<Integer, Double> e : state.walletDeltas.entrySet()) {
+                long delta = WalletLedger.toMinor(e.getValue());
+                if (delta > 0) ledger.credit(e.getKey(), delta);
+                else if (delta < 0) ledger.debit(e.getKey(), -delta);
+            }
+        }
+
+        public double balance(int userId) { return WalletLedger.toMajor(ledger.balance(userId)); }
+    }
+
+    // ----- Checkout: a whole trip reserved, priced, charged once and confirmed -----
+    // A cart is everything one user wants for a trip. Checkout books it through
+    // BookingService.bookCarts (all items or none), charges the cart total in one
+    // payment and, if the charge fails, cancels exactly the lines it added, so the
+    // user's other bookings are untouched. checkoutAll does the same for many carts
+    // at once: booking is one pass, and every payment is in flight at the same time.
+    static final class Cart {
+        final int userId;
+        final List<InventoryEngine.Reservation> items;
+        final Payment.Method method;
+
+        Cart(int userId, List<InventoryEngine.Reservation> items) { this(userId, items, Payment.Method.WALLET); }
+
+        Cart(int userId, List<InventoryEngine.Reservation> items, Payment.Method method) {
+            this.userId = userId;
+            this.items = items;
+            this.method = method;
+        }
+
+        // "hotel:<id>:<rooms>[:<yyyy-MM-dd>[:<nights>]],vehicle:<id>:<qty>[:<yyyy-MM-dd>]"; dates default to today.
+        static Cart parse(int userId, String spec, Payment.Method method, BookingService dates) throws ApplicationException {
+            List<InventoryEngine.Reservation> items = new ArrayList<>();
+            for (String item : spec.split(",")) {
+                String[] f = item.trim().split(":");
+                try {
+                    if (f[0].equalsIgnoreCase("hotel") && f.length >= 3 && f.length <= 5) {
+                        items.add(InventoryEngine.Reservation.rooms(Integer.parseInt(f[1]), f.length > 3 ? dates.dayOf(f[3]) : dates.today(),
+                                f.length > 4 ? Integer.parseInt(f[4]) : 1, Integer.parseInt(f[2])));
+                    } else if (f[0].equalsIgnoreCase("vehicle") && f.length >= 3 && f.length <= 4) {
+                        items.add(InventoryEngine.Reservation.seats(Integer.parseInt(f[1]), f.length > 3 ? dates.dayOf(f[3]) : dates.today(),
+                                Integer.parseInt(f[2])));
+                    } else {
+                        throw new ApplicationException(4002, "Invalid cart item: " + item);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ApplicationException(4002, "Invalid cart item: " + item);
+                }
+            }
+            return new Cart(userId, items, method);
+        }
+    }
+
+    static class Checkout {
+        private static final Metrics.Timer CHECKOUT = Metrics.GLOBAL.timer(Metrics.Op.CHECKOUT);
+
+        private final BookingService bookings;
+        private final Payment payment;
+
+        Checkout(BookingService bookings, Payment payment) {
+            this.bookings = bookings;
+            this.payment = payment;
+        }
+
+        public CompletableFuture<CheckoutResult> checkout(Cart cart) {
+            return checkoutAll(Collections.singletonList(cart)).thenApply(results -> results.get(0));
+        }
+
+        // Completes once every cart is confirmed or rolled back; results are in input order.
+        public CompletableFuture<List<CheckoutResult>> checkoutAll(List<Cart> carts) {
+            long t0 = CHECKOUT.start();
+            List<BookingService.CartBooking> booked = bookings.bookCarts(carts);
+            List<CompletableFuture<CheckoutResult>> results = new ArrayList<>(booked.size());
+            for (BookingService.CartBooking cb : booked) {
+                if (cb.error != null) {
+                    CHECKOUT.failure(t0, cb.error.getErrNo());
+                    results.add(CompletableFuture.completedFuture(CheckoutResult.rejected(cb.cart.userId, cb.error)));
+                    continue;
+                }
+                results.add(payment.makePaymentAsync(cb.cart.userId, cb.total, cb.cart.method).handle((paid, failure) -> {
+                    if (failure == null && paid.succeeded()) {
+                        CHECKOUT.success(t0);
+                        return CheckoutResult.confirmed(cb, paid);
+                    }
+                    ApplicationException why = failure != null ? unwrap(failure)
+                            : new ApplicationException(2009, "Insufficient wallet balance.");
+                    rollBack(cb);
+                    CHECKOUT.failure(t0, why.getErrNo());
+                    return CheckoutResult.unpaid(cb, paid, why);
+                }));
+            }
+            return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                List<CheckoutResult> out = new ArrayList<>(results.size());
+                for (CompletableFuture<CheckoutResult> r : results) out.add(r.join());
+                return out;
+            });
+        }
+
+        // Hands back what this cart reserved, by the booking each line actually went on, even
+        // if the user has moved to a new booking since. A line already cancelled is skipped.
+        private void rollBack(BookingService.CartBooking cb) {
+            for (BookingResult line : cb.lines) {
+                try {
+                    bookings.cancelLine(cb.cart.userId, line.bookingId, line.lineNo);
+                } catch (ApplicationException alreadyGone) {
+                    // Nothing held any more for this line.
+                } catch (UncheckedIOException journalDown) {
+                    // Released in memory; the journal has stopped taking records anyway.
+                }
+            }
+        }
+
+        private static ApplicationException unwrap(Throwable t) {
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            return cause instanceof ApplicationException ? (ApplicationException) cause
+                    : new ApplicationException(6001, "Payment failed: " + cause);
+        }
+    }
+
+    // ----- Write-ahead booking journal -----
+    // Append-only file of fixed-size, CRC-checked records. Callers hand events to a
+    // single flusher thread, which writes everything queued so far with one write and
+    // one fsync (group commit), so fsync cost is shared by all concurrent writers.
+    // The flusher also keeps State, the effect of every durable event, and every
+    // `snapshotEvery` events it saves State to a snapshot file and truncates the
+    // journal. Recovery loads the snapshot and replays only the tail. Records that
+    // must stand or fall together (a cart) are written as a group; see appendGroup.
+    static class BookingJournal implements AutoCloseable {
+        // New types go at the end: the ordinal is what is written to disk.
+        enum Type { BOOK_HOTEL, BOOK_VEHICLE, CANCEL, WALLET_PAYMENT, EXTERNAL_PAYMENT, REFUND, HOTEL_PRICE, VEHICLE_PRICE,
+                    CANCEL_HOTEL_LINE, CANCEL_VEHICLE_LINE }
+
+        static final String JOURNAL_FILE = "journal.log";
+        static final String SNAPSHOT_FILE = "snapshot.bin";
+        static final int RECORD_BYTES = 8 + 1 + 6 * 4 + 8 + 4;
+        // Set in the type byte of every record of a group but the last; see appendGroup.
+        static final int GROUP_CONTINUES = 0x80;
+        static final int MAX_BATCH = 4096;
+        static final int DEFAULT_SNAPSHOT_EVERY = 100_000;
+        private static final Type[] TYPES = Type.values();
+
+        static final class Event {
+            final Type type;
+            final int userId;
+            // The booking a book/cancel event belongs to; 0 for payments and prices.
+            final int bookingId;
+            final int resourceId;
+            final int fromDay;
+            final int days;
+            final int qty;
+            final double amount;
+
+            Event(Type type, int userId, int bookingId, int resourceId, int fromDay, int days, int qty, double amount) {
+                this.type = type;
+                this.userId = userId;
+                this.bookingId = bookingId;
+                this.resourceId = resourceId;
+                this.fromDay = fromDay;
+                this.days = days;
+                this.qty = qty;
+                this.amount = amount;
+            }
+
+            // `amount` is the unit price the line was charged at. Days are stored as epoch days
+            // (InventoryEngine.epochDay), so a restart on a later date keeps the same dates.
+            static Event booking(int userId, int bookingId, InventoryEngine.Reservation r, int epochDay, double unitPrice) {
+                Type t = r.kind == InventoryEngine.Kind.HOTEL ? Type.BOOK_HOTEL : Type.BOOK_VEHICLE;
+                return new Event(t, userId, bookingId, r.resourceId, epochDay, r.days, r.qty, unitPrice);
+            }
+
+            // Closes one booking only; lines the user has on a later booking are untouched.
+            static Event cancel(int userId, int bookingId, double refund) {
+                return new Event(Type.CANCEL, userId, bookingId, 0, 0, 0, 0, refund);
+            }
+
+            static Event cancelLine(int userId, int bookingId, InventoryEngine.Reservation r, int epochDay, double refund) {
+                Type t = r.kind == InventoryEngine.Kind.HOTEL ? Type.CANCEL_HOTEL_LINE : Type.CANCEL_VEHICLE_LINE;
+                return new Event(t, userId, bookingId, r.resourceId, epochDay, r.days, r.qty, refund);
+            }
+
+            static Event payment(int userId, double amount, Payment.Method method) {
+                Type t = method == Payment.Method.WALLET ? Type.WALLET_PAYMENT : Type.EXTERNAL_PAYMENT;
+                return new Event(t, userId, 0, 0, 0, 0, 0, amount);
+            }
+
+            static Event refund(int userId, double amount) { return new Event(Type.REFUND, userId, 0, 0, 0, 0, 0, amount); }
+
+            static Event price(Type type, int resourceId, double price) { return new Event(type, 0, 0, resourceId, 0, 0, 0, price); }
+
+            double charge() { return qty * days * amount; }
+
+            // fromDay is still an epoch day here; callers rebase it with InventoryEngine.dayOfEpoch.
+            InventoryEngine.Reservation reservation() {
+                InventoryEngine.Kind kind = type == Type.BOOK_HOTEL || type == Type.CANCEL_HOTEL_LINE
+                        ? InventoryEngine.Kind.HOTEL : InventoryEngine.Kind.VEHICLE;
+                return new InventoryEngine.Reservation(kind, resourceId, fromDay, days, qty);
+            }
+
+            void writeTo(DataOutputStream out) throws IOException {
+                out.writeByte(type.ordinal());
+                out.writeInt(userId);
+                out.writeInt(bookingId);
+                out.writeInt(resourceId);
+                out.writeInt(fromDay);
+                out.writeInt(days);
+                out.writeInt(qty);
+                out.writeDouble(amount);
+            }
+
+            static Event readFrom(DataInputStream in) throws IOException {
+                return new Event(TYPES[in.readByte()], in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                        in.readDouble());
+            }
+        }
+
+        // The combined effect of every durable event: current prices, open bookings,
+        // wallet deltas and the unpaid amount per user. This is all a restart needs.
+        static final class State {
+            long lastSeq;
+            final Map<Integer, Double> hotelPrices = new HashMap<>();
+            final Map<Integer, Double> vehiclePrices = new HashMap<>();
+            final Map<Integer, Double> walletDeltas = new HashMap<>();
+            // Booked but not yet paid, netted the same way the front ends do (see offsetDue).
+            final Map<Integer, Double> amountDue = new HashMap<>();
+            final Map<Integer, List<Event>> openBookings = new HashMap<>();
+            // Highest booking id ever journaled, so ids are not reused after a restart.
+            int lastBookingId;
+
+            void apply(long seq, Event e) {
+                lastSeq = seq;
+                switch (e.type) {
+                    case BOOK_HOTEL:
+                    case BOOK_VEHICLE:
+                        openBookings.computeIfAbsent(e.userId, k -> new ArrayList<>()).add(e);
+                        amountDue.merge(e.userId, e.charge(), Double::sum);
+                        lastBookingId = Math.max(lastBookingId, e.bookingId);
+                        break;
+                    case CANCEL: {
+                        // Only that booking's lines; a later booking of the same user stays open.
+                        offsetDue(amountDue, e.userId, e.amount);
+                        List<Event> open = openBookings.get(e.userId);
+                        if (open == null) break;
+                        open.removeIf(o -> o.bookingId == e.bookingId);
+                        if (open.isEmpty()) openBookings.remove(e.userId);
+                        break;
+                    }
+                    case CANCEL_HOTEL_LINE:
+                    case CANCEL_VEHICLE_LINE: {
+                        offsetDue(amountDue, e.userId, e.amount);
+                        // Drop the first open event for the same item on the same booking.
+                        List<Event> open = openBookings.get(e.userId);
+                        if (open == null) break;
+                        InventoryEngine.Reservation r = e.reservation();
+                        for (Iterator<Event> it = open.iterator(); it.hasNext(); ) {
+                            Event o = it.next();
+                            InventoryEngine.Reservation or = o.reservation();
+                            if (o.bookingId == e.bookingId && or.kind == r.kind && or.resourceId == r.resourceId
+                                    && or.fromDay == r.fromDay && or.days == r.days && or.qty == r.qty) {
+                                it.remove();
+                                break;
+                            }
+                        }
+                        if (open.isEmpty()) openBookings.remove(e.userId);
+                        break;
+                    }
+                    case WALLET_PAYMENT:
+                        walletDeltas.merge(e.userId, -e.amount, Double::sum);
+                        offsetDue(amountDue, e.userId, e.amount);
+                        break;
+                    case EXTERNAL_PAYMENT:
+                        offsetDue(amountDue, e.userId, e.amount);
+                        break;
+                    case REFUND:
+                        walletDeltas.merge(e.userId, e.amount, Double::sum);
+                        break;
+                    case HOTEL_PRICE:
+                        hotelPrices.put(e.resourceId, e.amount);
+                        break;
+                    case VEHICLE_PRICE:
+                        vehiclePrices.put(e.resourceId, e.amount);
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            void writeTo(DataOutputStream out) throws IOException {
+                out.writeLong(lastSeq);
+                out.writeInt(lastBookingId);
+                writePrices(out, hotelPrices);
+                writePrices(out, vehiclePrices);
+                writePrices(out, walletDeltas);
+                writePrices(out, amountDue);
+                out.writeInt(openBookings.size());
+                for (Map.Entry<Integer, List<Event>> en : openBookings.entrySet()) {
+                    out.writeInt(en.getKey());
+                    out.writeInt(en.getValue().size());
+                    for (Event e : en.getValue()) e.writeTo(out);
+                }
+            }
+
+            static State readFrom(DataInputStream in) throws IOException {
+                State st = new State();
+                st.lastSeq = in.readLong();
+                st.lastBookingId = in.readInt();
+                readPrices(in, st.hotelPrices);
+                readPrices(in, st.vehiclePrices);
+                readPrices(in, st.walletDeltas);
+                readPrices(in, st.amountDue);
+                int users = in.readInt();
+                for (int i = 0; i < users; i++) {
+                    int user = in.readInt();
+                    int n = in.readInt();
+                    List<Event> events = new ArrayList<>(n);
+                    for (int k = 0; k < n; k++) events.add(Event.readFrom(in));
+                    st.openBookings.put(user, events);
+                }
+                return st;
+            }
+
+            private static void writePrices(DataOutputStream out, Map<Integer, Double> m) throws IOException {
+                out.writeInt(m.size());
+                for (Map.Entry<Integer, Double> en : m.entrySet()) {
+                    out.writeInt(en.getKey());
+                    out.writeDouble(en.getValue());
+                }
+            }
+
+            private static void readPrices(DataInputStream in, Map<Integer, Double> m) throws IOException {
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) m.put(in.readInt(), in.readDouble());
+            }
+
+            State copy() {
+                State c = new State();
+                c.lastSeq = lastSeq;
+                c.lastBookingId = lastBookingId;
+                c.hotelPrices.putAll(hotelPrices);
+                c.vehiclePrices.putAll(vehiclePrices);
+                c.walletDeltas.putAll(walletDeltas);
+                c.amountDue.putAll(amountDue);
+                openBookings.forEach((k, v) -> c.openBookings.put(k, new ArrayList<>(v)));
+                return c;
+            }
+        }
+
+        private static final class Pending {
+            final Event[] events; // null marks a snapshot request
+            final CompletableFuture<Long> done = new CompletableFuture<>();
+
+            Pending(Event... events) { this.events = events; }
+        }
+
+        private final Path dir;
+        private final FileChannel channel;
+        private final int snapshotEvery;
+        private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+        private final Thread flusher;
+        private final State state;
+        private final State recovered;
+        private final ByteBuffer batch = ByteBuffer.allocateDirect(RECORD_BYTES * MAX_BATCH);
+        private final CRC32 crc = new CRC32();
+        private volatile boolean closed;
+        // The first write, fsync or snapshot error. The file may then end in a torn record,
+        // and replay stops there, so nothing is appended after it: records written past
+        // it would be lost on restart, and their sequence numbers could be reused.
+        private volatile IOException failure;
+        private long eventsSinceSnapshot;
+
+        private BookingJournal(Path dir, FileChannel channel, State state, int snapshotEvery) {
+            this.dir = dir;
+            this.channel = channel;
+            this.state = state;
+            this.recovered = state.copy();
+            this.snapshotEvery = snapshotEvery;
+            this.flusher = new Thread(this::flushLoop, "journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        public static BookingJournal open(Path dir) throws IOException {
+            return open(dir, DEFAULT_SNAPSHOT_EVERY);
+        }
+
+        public static BookingJournal open(Path dir, int snapshotEvery) throws IOException {
+            Files.createDirectories(dir);
+            State st = new State();
+            Path snap = dir.resolve(SNAPSHOT_FILE);
+            if (Files.exists(snap)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snap)))) {
+                    st = State.readFrom(in);
+                }
+            }
+            FileChannel ch = FileChannel.open(dir.resolve(JOURNAL_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long validEnd = replay(ch, st);
+            // Drop a torn or corrupt tail so new records follow the last good one.
+            ch.truncate(validEnd);
+            ch.position(validEnd);
+            return new BookingJournal(dir, ch, st, snapshotEvery);
+        }
+
+        // Applies every intact record newer than the snapshot; returns the end of the valid
+        // prefix. A group is applied only once its last record is read, so a group cut off
+        // by a crash or a failed write is dropped whole, and the prefix ends before it.
+        private static long replay(FileChannel ch, State st) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_BYTES * 1024);
+            CRC32 crc = new CRC32();
+            List<Event> group = new ArrayList<>();
+            long groupFirstSeq = 0;
+            long pos = 0, groupStart = 0;
+            ch.position(0);
+            while (true) {
+                buf.clear();
+                int n = ch.read(buf, pos);
+                if (n < RECORD_BYTES) return groupStart;
+                buf.flip();
+                while (buf.remaining() >= RECORD_BYTES) {
+                    int start = buf.position();
+                    crc.reset();
+                    ByteBuffer body = buf.duplicate();
+                    body.limit(start + RECORD_BYTES - 4);
+                    crc.update(body);
+                    buf.position(start);
+                    long seq = buf.getLong();
+                    int flags = buf.get() & 0xff;
+                    int type = flags & ~GROUP_CONTINUES;
+                    int user = buf.getInt(), booking = buf.getInt(), res = buf.getInt(), from = buf.getInt(), days = buf.getInt(),
+                            qty = buf.getInt();
+                    double amount = buf.getDouble();
+                    int stored = buf.getInt();
+                    if (stored != (int) crc.getValue() || type >= TYPES.length) return groupStart;
+                    if (group.isEmpty()) groupFirstSeq = seq;
+                    group.add(new Event(TYPES[type], user, booking, res, from, days, qty, amount));
+                    pos += RECORD_BYTES;
+                    if ((flags & GROUP_CONTINUES) != 0) continue;
+                    for (int i = 0; i < group.size(); i++) {
+                        if (groupFirstSeq + i > st.lastSeq) st.apply(groupFirstSeq + i, group.get(i));
+                    }
+                    group.clear();
+                    groupStart = pos;
+                }
+            }
+        }
+
+        // State as of open(), for wiring the recovered data back into the live services.
+        public State recovered() { return recovered; }
+
+        public CompletableFuture<Long> append(Event e) {
+            return enqueue(new Pending(e));
+        }
+
+        // All or nothing: the events are written back to back, and replay applies them
+        // only if every one of them made it to disk. Completes with the last sequence number.
+        public CompletableFuture<Long> appendGroup(List<Event> events) {
+            return enqueue(new Pending(events.toArray(new Event[0])));
+        }
+
+        private CompletableFuture<Long> enqueue(Pending p) {
+            if (closed) {
+                p.done.completeExceptionally(new IOException("Journal is closed"));
+                return p.done;
+            }
+            IOException failed = failure;
+            if (failed != null) {
+                p.done.completeExceptionally(new IOException("Journal stopped after an earlier write failure: " + failed, failed));
+                return p.done;
+            }
+            queue.add(p);
+            return p.done;
+        }
+
+        // Blocks until the event has been fsynced; returns its sequence number.
+        public long appendDurably(Event e) {
+            return await(append(e));
+        }
+
+        // Queues every event, then blocks once until all of them have been fsynced.
+        public void appendAllDurably(List<Event> events) {
+            if (events.isEmpty()) return;
+            CompletableFuture<?>[] appends = new CompletableFuture<?>[events.size()];
+            for (int i = 0; i < appends.length; i++) appends[i] = append(events.get(i));
+            await(CompletableFuture.allOf(appends));
+        }
+
+        public void snapshot() {
+            Pending p = new Pending((Event[]) null);
+            queue.add(p);
+            await(p.done);
+        }
+
+        // Blocks on an append queued earlier; fails the same way appendDurably does.
+        public static long awaitDurable(CompletableFuture<Long> appended) {
+            return await(appended);
+        }
+
+        private static <T> T await(CompletableFuture<T> f) {
+            try {
+                return f.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new IOException("Interrupted waiting for journal", ie));
+            } catch (ExecutionException ee) {
+                Throwable c = ee.getCause();
+                throw new UncheckedIOException(c instanceof IOException ? (IOException) c : new IOException(c));
+            }
+        }
+
+        private void flushLoop() {
+            List<Pending> drained = new ArrayList<>(MAX_BATCH);
+            while (!closed || !queue.isEmpty()) {
+                try {
+                    Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    drained.add(first);
+                    queue.drainTo(drained, MAX_BATCH - 1);
+                    writeBatch(drained);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
+                    for (Pending p : drained) p.done.completeExceptionally(e);
+                } finally {
+                    drained.clear();
+                }
+            }
+        }
+
+        private void writeBatch(List<Pending> drained) throws IOException {
+            IOException failed = failure;
+            if (failed != null) throw new IOException("Journal stopped after an earlier write failure: " + failed, failed);
+            batch.clear();
+            long seq = state.lastSeq;
+            boolean wantSnapshot = false;
+            for (Pending p : drained) {
+                if (p.events == null) { wantSnapshot = true; continue; }
+                for (int i = 0; i < p.events.length; i++) {
+                    // Groups can outgrow the buffer; it is still one fsync.
+                    if (batch.remaining() < RECORD_BYTES) writeBuffer();
+                    encode(++seq, p.events[i], i < p.events.length - 1);
+                }
+            }
+            writeBuffer();
+            if (seq != state.lastSeq) channel.force(false);
+            // Durable now: fold into State and release the writers.
+            seq = state.lastSeq;
+            for (Pending p : drained) {
+                if (p.events == null) continue;
+                for (Event e : p.events) {
+                    state.apply(++seq, e);
+                    eventsSinceSnapshot++;
+                }
+                p.done.complete(seq);
+            }
+            if (wantSnapshot || eventsSinceSnapshot >= snapshotEvery) writeSnapshot();
+            for (Pending p : drained) if (p.events == null) p.done.complete(state.lastSeq);
+        }
+
+        private void writeBuffer() throws IOException {
+            batch.flip();
+            while (batch.hasRemaining()) channel.write(batch);
+            batch.clear();
+        }
+
+        private void encode(long seq, Event e, boolean groupContinues) {
+            int start = batch.position();
+            batch.putLong(seq).put((byte) (e.type.ordinal() | (groupContinues ? GROUP_CONTINUES : 0)))
+                    .putInt(e.userId).putInt(e.bookingId).putInt(e.resourceId).putInt(e.fromDay).putInt(e.days).putInt(e.qty)
+                    .putDouble(e.amount);
+            ByteBuffer body = batch.duplicate();
+            body.position(start).limit(batch.position());
+            crc.reset();
+            crc.update(body);
+            batch.putInt((int) crc.getValue());
+        }
+
+        // Runs on the flusher thread, so State matches the journal exactly.
+        private void writeSnapshot() throws IOException {
+            Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 DataOutputStream data = new DataOutputStream(new BufferedOutputStream(java.nio.channels.Channels.newOutputStream(out)))) {
+                state.writeTo(data);
+                data.flush();
+                out.force(true);
+            }
+            Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            // Records up to lastSeq are in the snapshot; replay skips them even if this truncate is lost.
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+            eventsSinceSnapshot = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    // ----- Presenter: all rendering of search results and operation outcomes -----
+    interface Presenter {
+        void hotels(List<Hotel> hotels);
+        void vehicles(List<Vehicle> vehicles);
+        void itinerary(ItineraryEngine.Itinerary itinerary);
+        void booking(BookingResult result);
+        void cancellation(CancelResult result);
+        void payment(PaymentResult result);
+        void checkout(CheckoutResult result);
+        // `user` is null when the booking's directory does not know the user.
+        void receipt(User user, List<BookingLine> lines);
+        void error(ApplicationException error);
+    }
+
+    static class ConsolePresenter implements Presenter {
+        private final PrintStream out;
+
+        public ConsolePresenter(PrintStream out) { this.out = out; }
+
+        static String hotelLine(Hotel h) {
+            return String.format("Hotel %d : %s : %s : Rating=%d : Price=%.2f",
+                    h.hotelId, h.name, h.location, h.rating, h.pricePerRoom);
+        }
+
+        static String vehicleLine(Vehicle v) {
+            return String.format("Vehicle %d : %s : %s : Seats=%d : %s -> %s : Price=%.2f",
+                    v.vehicleId, v.vehicleType, v.franchiseName, v.seatingCapacity, v.from, v.to, v.price);
+        }
+
+        static String stateLine(StateChange change) {
+            switch (change) {
+                case PENDING_TO_CONFIRMED: return "Booking moved from Pending -> Confirmed";
+                case PENDING_TO_CANCELLED: return "Booking moved from Pending -> Cancelled";
+                case CONFIRMED_TO_CANCELLED: return "Booking moved from Confirmed -> Cancelled";
+                case ALREADY_CONFIRMED: return "Booking already confirmed.";
+                case CONFIRM_REJECTED: return "Cannot confirm a cancelled booking.";
+                case LINE_CANCELLED: return "Booking line cancelled.";
+                default: return "Booking already cancelled.";
+            }
+        }
+
+        public void hotel(Hotel h) { out.println(hotelLine(h)); }
+        public void vehicle(Vehicle v) { out.println(vehicleLine(v)); }
+
+        public void hotels(List<Hotel> hotels) { for (Hotel h : hotels) hotel(h); }
+        public void vehicles(List<Vehicle> vehicles) { for (Vehicle v : vehicles) vehicle(v); }
+
+        public void itinerary(ItineraryEngine.Itinerary itinerary) {
+            out.println(itineraryLine(itinerary));
+            vehicles(itinerary.legs);
+        }
+
+        static String itineraryLine(ItineraryEngine.Itinerary it) {
+            return String.format("Itinerary: %d leg(s) : Total=%.2f", it.hops(), it.totalPrice);
+        }
+
+        public void booking(BookingResult result) {
+            if (result.change == StateChange.ALREADY_CONFIRMED) out.println("Added to booking " + result.bookingId + ".");
+            else out.println(stateLine(result.change));
+        }
+        public void cancellation(CancelResult result) { out.println(stateLine(result.change)); }
+
+        public void payment(PaymentResult result) {
+            switch (result.status) {
+                case PAID_WALLET:
+                    out.println("Payment successful via wallet. Remaining wallet: " + result.walletBalance);
+                    break;
+                case PAID_EXTERNAL:
+                    out.println("Payment successful via external method.");
+                    break;
+                case INSUFFICIENT_FUNDS:
+                    out.println("Insufficient wallet balance.");
+                    break;
+                case PAYMENT_FAILED:
+                    out.println("External payment failed. Please try again.");
+                    break;
+                case REFUNDED:
+                    out.println("Refund processed. Wallet credited by: " + result.amount);
+                    out.println("Updated wallet balance: " + result.walletBalance);
+                    break;
+            }
+        }
+
+        public void checkout(CheckoutResult result) {
+            switch (result.status) {
+                case CONFIRMED:
+                    out.printf("Trip booked and paid: booking %d, %d item(s), total %.2f.%n",
+                            result.bookingId, result.lines.size(), result.total);
+                    payment(result.payment);
+                    break;
+                case REJECTED:
+                    error(result.error);
+                    break;
+                case PAYMENT_FAILED:
+                    if (result.payment != null) payment(result.payment);
+                    else error(result.error);
+                    out.println("Nothing was booked.");
+                    break;
+            }
+        }
+
+        public void receipt(User user, List<BookingLine> lines) {
+            if (user == null) {
+                out.println("User not found in booking context.");
+            } else {
+                out.println("----- Receipt -----");
+                out.printf("Name: %s%nEmail: %s%nLocation: %s%n", user.name, user.email, user.location);
+            }
+            for (BookingLine line : lines) out.println(line);
+        }
+
+        public void error(ApplicationException error) { out.println(error.getMessage()); }
+    }
+
+    // ----- HTTP front end -----
+    // Plain-text API over com.sun.net.httpserver. Every exchange runs on its own
+    // virtual thread when the JVM has them (JDK 21+), otherwise on a cached pool,
+    // and calls the same Register/BookingService/Payment logic as the console menu.
+    //
+    //   POST /login          userId, password            -> token
+    //   POST /logout         token
+    //   GET  /hotels         location[, minRating, maxPrice, limit, date, nights, rooms] -> one hotel per line
+    //   GET  /vehicles       from, to[, date, seats]     -> one vehicle per line
+    //   GET  /itinerary      from, to, [by=price|hops]   -> summary line, then one leg per line
+    //   POST /book/hotel     token, hotelId, rooms[, date, nights]
+    //   POST /book/vehicle   token, vehicleId, qty[, date]
+    //   POST /pay            token[, method=wallet|external]
+    //   POST /checkout       token, items[, method]      (see Cart.parse; books and pays in one step)
+    //   POST /cancel         token[, line]               (whole booking, or just one line)
+    //   GET  /booking        token                       -> id and state, then one transition per line
+    //   POST /admin/reprice  token, rules[, surge, date]  (admin; see PricingEngine.parseRules)
+    //   GET  /metrics                                    -> calls, errors and latency per operation, error counts,
+    //                                                       search cache hit rate
+    static class TravelServer {
+        @FunctionalInterface
+        interface Endpoint {
+            String handle(Map<String, String> params) throws ApplicationException;
+        }
+
+        private final HttpServer http;
+        private final ExecutorService executor;
+        private final UserDirectory users;
+        private final Register register = new Register();
+        private final BookingService bookings;
+        private final Payment payment;
+        private final SessionCache sessions;
+        private final Checkout checkout;
+        private final ConcurrentHashMap<Integer, Double> amountDue = new ConcurrentHashMap<>();
+
+        // Unpaid amounts recovered from the journal, so a cancel after a restart refunds only what was paid.
+        public void restoreDue(Map<Integer, Double> due) { amountDue.putAll(due); }
+
+        public TravelServer(InetSocketAddress address, UserDirectory users, BookingService bookings, Payment payment) throws IOException {
+            this(address, users, new SessionCache(), bookings, payment);
+        }
+
+        public TravelServer(InetSocketAddress address, UserDirectory users, SessionCache sessions,
+                            BookingService bookings, Payment payment) throws IOException {
+            this.users = users;
+            this.sessions = sessions;
+            this.bookings = bookings;
+            this.payment = payment;
+            this.checkout = new Checkout(bookings, payment);
+            this.executor = newPerTaskExecutor();
+            this.http = HttpServer.create(address, 1024);
+            http.setExecutor(executor);
+            route("/login", this::login);
+            route("/logout", this::logout);
+            route("/hotels", this::hotels);
+            route("/vehicles", this::vehicles);
+            route("/itinerary", this::itinerary);
+            route("/book/hotel", this::bookHotel);
+            route("/book/vehicle", this::bookVehicle);
+            route("/pay", this::pay);
+            route("/checkout", this::checkout);
+            route("/cancel", this::cancel);
+            route("/booking", this::booking);
+            route("/admin/reprice", this::reprice);
+            route("/metrics", p -> Metrics.GLOBAL.render() + "\nsearch_cache " + bookings.searchCacheStats());
+        }
+
+        static ExecutorService newPerTaskExecutor() {
+            try {
+                Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) m.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "travel-http");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+
+        public void start() { http.start(); }
+
+        public void stop() {
+            http.stop(0);
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public int port() { return http.getAddress().getPort(); }
+
+        private void route(String path, Endpoint endpoint) {
+            http.createContext(path, ex -> {
+                int status = 200;
+                String body;
+                try {
+                    body = endpoint.handle(params(ex));
+                } catch (ApplicationException ae) {
+                    status = statusFor(ae.getErrNo());
+                    body = "ERROR " + ae.getErrNo() + " : " + ae.getMessage();
+                } catch (RuntimeException e) {
+                    status = 500;
+                    body = "ERROR : " + e;
+                }
+                byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+                ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                ex.sendResponseHeaders(status, bytes.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(bytes);
+                }
+            });
+        }
+
+        static int statusFor(int errNo) {
+            switch (errNo) {
+                case 101:
+                case 1002: return 403;
+                case 3001: return 401;
+                case 3002: return 503;
+                case 2001:
+                case 2002:
+                case 2010:
+                case 2011: return 404;
+                case 2005:
+                case 2006:
+                case 2007: return 409;
+                case 2009:
+                case 6002: return 402;
+                case 6001: return 502;
+                case 6003: return 503;
+                case 6004: return 504;
+                default: return 400;
+            }
+        }
+
+        // Query string and url-encoded body are merged; body values win.
+        private static Map<String, String> params(HttpExchange ex) throws IOException {
+            Map<String, String> out = new HashMap<>();
+            decodeInto(ex.getRequestURI().getRawQuery(), out);
+            try (InputStream in = ex.getRequestBody()) {
+                decodeInto(new String(in.readAllBytes(), StandardCharsets.UTF_8), out);
+            }
+            return out;
+        }
+
+        private static void decodeInto(String raw, Map<String, String> out) {
+            if (raw == null || raw.isEmpty()) return;
+            for (String pair : raw.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq <= 0) continue;
+                out.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8).trim());
+            }
+        }
+
+        private static String required(Map<String, String> p, String key) throws ApplicationException {
+            String v = p.get(key);
+            if (v == null || v.isEmpty()) throw new ApplicationException(4001, "Missing parameter: " + key);
+            return v;
+        }
+
+        private static int intParam(Map<String, String> p, String key, Integer fallback) throws ApplicationException {
+            String v = p.get(key);
+            if (v == null || v.isEmpty()) {
+                if (fallback != null) return fallback;
+                throw new ApplicationException(4001, "Missing parameter: " + key);
+            }
+            try {
+                return Integer.parseInt(v);
+            } catch (NumberFormatException e) {
+                throw new ApplicationException(4002, "Invalid number for " + key + ": " + v);
+            }
+        }
+
+        // Dates are yyyy-MM-dd and default to today.
+        private int dateParam(Map<String, String> p) throws ApplicationException {
+            String v = p.get("date");
+            return v == null || v.isEmpty() ? bookings.today() : bookings.dayOf(v);
+        }
+
+        private int userOf(Map<String, String> p) throws ApplicationException {
+            SessionCache.Session session = sessions.get(required(p, "token"));
+            if (session == null) throw new ApplicationException(3001, "Please login first.");
+            return session.userId;
+        }
+
+        private String login(Map<String, String> p) throws ApplicationException {
+            int id = intParam(p, "userId", null);
+            if (register.authenticate(users, id, required(p, "password")) != id) {
+                throw new ApplicationException(3001, "Invalid userId or password.");
+            }
+            return "token=" + sessions.create(users.find(id)).token;
+        }
+
+        private String logout(Map<String, String> p) throws ApplicationException {
+            sessions.invalidate(required(p, "token"));
+            return "ok";
+        }
+
+        // Plain listing by location, or with minRating/maxPrice/limit a filtered, cheapest-first search.
+        // With date/nights/rooms only hotels that have the rooms free on every one of those nights.
+        private String hotels(Map<String, String> p) throws ApplicationException {
+            String location = required(p, "location");
+            List<Hotel> found;
+            boolean dated = p.containsKey("date") || p.containsKey("nights") || p.containsKey("rooms");
+            if (dated || p.containsKey("minRating") || p.containsKey("maxPrice") || p.containsKey("limit")) {
+                double maxPrice;
+                try {
+                    maxPrice = p.containsKey("maxPrice") ? Double.parseDouble(p.get("maxPrice")) : Double.MAX_VALUE;
+                } catch (NumberFormatException e) {
+                    throw new ApplicationException(4002, "Invalid number for maxPrice: " + p.get("maxPrice"));
                 }
+                int minRating = intParam(p, "minRating", 0), limit = intParam(p, "limit", 100);
+                found = dated
+                        ? bookings.searchAvailableHotels(location, dateParam(p), intParam(p, "nights", 1),
+                                intParam(p, "rooms", 1), minRating, maxPrice, limit)
+                        : bookings.searchHotels(location, minRating, maxPrice, limit);
+            } else {
+                found = bookings.hotels().findByLocation(location);
             }
-            System.out.println("No such user. Do you want to sign up with this id? (y/n)");
-            String ch = sc.nextLine().trim();
-            if (ch.equalsIgnoreCase("y")) {
-                signUp(users, sc, id, pw);
-                return id;
+            StringBuilder sb = new StringBuilder();
+            for (Hotel h : found) {
+                sb.append(ConsolePresenter.hotelLine(h)).append('\n');
             }
-            return -1;
+            return sb.toString().trim();
         }
-    }
-
-    // ----- Hotel -----
-    static class Hotel {
-        int hotelId;
-        String name;
-        String location;
-        int rating;
-        double pricePerRoom;
 
-        public Hotel(int hotelId, String name, String location, int rating, double price) {
-            this.hotelId = hotelId;
-            this.name = name;
-            this.location = location;
-            this.rating = rating;
-            this.pricePerRoom = price;
+        // With date/seats only departures that still have the seats on that day.
+        private String vehicles(Map<String, String> p) throws ApplicationException {
+            String from = required(p, "from"), to = required(p, "to");
+            List<Vehicle> found = p.containsKey("date") || p.containsKey("seats")
+                    ? bookings.searchAvailableVehicles(from, to, dateParam(p), intParam(p, "seats", 1))
+                    : bookings.transports().findByRoute(from, to);
+            StringBuilder sb = new StringBuilder();
+            for (Vehicle v : found) {
+                sb.append(ConsolePresenter.vehicleLine(v)).append('\n');
+            }
+            return sb.toString().trim();
         }
 
-        public void printHotel() {
-            System.out.printf("Hotel %d : %s : %s : Rating=%d : Price=%.2f\n",
-                    hotelId, name, location, rating, pricePerRoom);
+        private String itinerary(Map<String, String> p) throws ApplicationException {
+            ItineraryEngine.Mode mode = p.getOrDefault("by", "price").equalsIgnoreCase("hops")
+                    ? ItineraryEngine.Mode.FEWEST_HOPS : ItineraryEngine.Mode.CHEAPEST;
+            ItineraryEngine.Itinerary it = bookings.findItinerary(required(p, "from"), required(p, "to"), mode);
+            StringBuilder sb = new StringBuilder(ConsolePresenter.itineraryLine(it)).append('\n');
+            for (Vehicle v : it.legs) sb.append(ConsolePresenter.vehicleLine(v)).append('\n');
+            return sb.toString().trim();
         }
 
-        public int getHotelId() { return hotelId; }
-        public String getLocation() { return location; }
-        public void setPricePerRoom(double p) { this.pricePerRoom = p; }
-    }
+        private String bookHotel(Map<String, String> p) throws ApplicationException {
+            int user = userOf(p);
+            BookingResult r = bookings.bookHotel(user, intParam(p, "hotelId", null), intParam(p, "rooms", null),
+                    dateParam(p), intParam(p, "nights", 1));
+            amountDue.merge(user, r.charge, Double::sum);
+            return String.format("charge=%.2f line=%d", r.charge, r.lineNo);
+        }
 
-    // ----- Vehicle & Transportation -----
-    static class Vehicle {
-        int vehicleId;
-        String vehicleType;
-        String franchiseName;
-        int seatingCapacity;
-        String from;
-        String to;
-        double price;
+        private String bookVehicle(Map<String, String> p) throws ApplicationException {
+            int user = userOf(p);
+            BookingResult r = bookings.bookVehicle(user, intParam(p, "vehicleId", null), intParam(p, "qty", null),
+                    dateParam(p));
+            amountDue.merge(user, r.charge, Double::sum);
+            return String.format("charge=%.2f line=%d", r.charge, r.lineNo);
+        }
 
-        public Vehicle(int id, String type, String franchise, int seats, String from, String to, double price) {
-            this.vehicleId = id;
-            this.vehicleType = type;
-            this.franchiseName = franchise;
-            this.seatingCapacity = seats;
-            this.from = from;
-            this.to = to;
-            this.price = price;
+        private String pay(Map<String, String> p) throws ApplicationException {
+            int user = userOf(p);
+            Double due = amountDue.remove(user);
+            if (due == null || due <= 0) throw new ApplicationException(2008, "No pending booking amount. Book first.");
+            Payment.Method method = methodOf(p);
+            PaymentResult r;
+            try {
+                r = payment.makePaymentAsync(user, due, method).join();
+            } catch (CompletionException e) {
+                amountDue.merge(user, due, Double::sum);
+                if (e.getCause() instanceof ApplicationException) throw (ApplicationException) e.getCause();
+                throw e;
+            }
+            if (!r.succeeded()) {
+                amountDue.merge(user, due, Double::sum);
+                throw new ApplicationException(2009, "Insufficient wallet balance.");
+            }
+            return String.format("paid=%.2f", due);
         }
 
-        public void printVehicleDetails() {
-            System.out.printf("Vehicle %d : %s : %s : Seats=%d : %s -> %s : Price=%.2f\n",
-                    vehicleId, vehicleType, franchiseName, seatingCapacity, from, to, price);
+        private static Payment.Method methodOf(Map<String, String> p) {
+            return p.getOrDefault("method", "wallet").equalsIgnoreCase("external") ? Payment.Method.EXTERNAL : Payment.Method.WALLET;
         }
-    }
 
-    static class Transportation {
-        String source;
-        String destination;
-        List<Vehicle> vehicles = new ArrayList<>();
+        // Whole trip in one request: nothing is left booked unless it was paid for.
+        private String checkout(Map<String, String> p) throws ApplicationException {
+            Cart cart = Cart.parse(userOf(p), required(p, "items"), methodOf(p), bookings);
+            CheckoutResult r = checkout.checkout(cart).join();
+            if (r.error != null) throw r.error;
+            StringBuilder sb = new StringBuilder(String.format("booking=%d total=%.2f", r.bookingId, r.total));
+            for (BookingResult line : r.lines) sb.append(String.format("%nline=%d charge=%.2f", line.lineNo, line.charge));
+            return sb.toString();
+        }
 
-        public Transportation(String s, String d) {
-            this.source = s;
-            this.destination = d;
+        private String reprice(Map<String, String> p) throws ApplicationException {
+            SessionCache.Session session = sessions.get(required(p, "token"));
+            if (session == null) throw new ApplicationException(3001, "Please login first.");
+            session.requireAdmin(101);
+            PricingEngine.Result r = new PricingEngine(bookings).reprice(PricingEngine.parseRules(p.get("rules")),
+                    PricingEngine.parseSurge(p.get("surge")), dateParam(p));
+            return r.toString();
         }
 
-        public void addVehicle(Vehicle v) { vehicles.add(v); }
+        private String booking(Map<String, String> p) throws ApplicationException {
+            Booking b = bookings.existingBooking(userOf(p));
+            if (b == null) throw new ApplicationException(2004, "No bookings yet.");
+            StringBuilder sb = new StringBuilder("booking=" + b.bookingId + " state=" + b.getStateName());
+            for (Booking.Transition t : b.history()) sb.append('\n').append(t.at).append(' ').append(t.change);
+            for (BookingLine line : b.lines()) sb.append('\n').append(line);
+            return sb.toString();
+        }
 
-        public void printAllVehicles() {
-            for (Vehicle v : vehicles) v.printVehicleDetails();
+        private String cancel(Map<String, String> p) throws ApplicationException {
+            int user = userOf(p);
+            CancelResult r = p.containsKey("line") ? bookings.cancelLine(user, intParam(p, "line", null)) : bookings.cancel(user);
+            // Whatever was never paid just comes off the bill; only the rest is refunded.
+            double refund = offsetDue(amountDue, user, r.refund);
+            if (refund > 0) payment.refundPayment(user, refund);
+            return String.format("refund=%.2f", refund);
         }
     }
 
-    // ----- Booking State Pattern -----
-    interface BookingState {
-        void confirmBooking(Booking booking);
-        void cancelBooking(Booking booking);
-        String stateName();
-    }
+    // ----- Self-test: the HTTP API end to end against localhost -----
+    // No test framework in this project either, so `--selftest` is the integration
+    // check: it starts a TravelServer on an ephemeral port over fresh seed data and a
+    // journal in a temporary directory, drives it with java.net.http, and asserts on
+    // each response's status and body. Halfway through it restarts the server on the
+    // same journal to check what survives. One line per check; the exit status is
+    // non-zero if any check failed.
+    //
+    //   java TravelApp --selftest
+    static final class SelfTest {
+        private final HttpClient client = HttpClient.newHttpClient();
+        private String base;
+        private int checks;
+        private int failures;
+
+        // A server with its own services and journal, as main wires them.
+        private static final class Instance {
+            final BookingJournal journal;
+            final TravelServer server;
 
-    static class PendingState implements BookingState {
-        public void confirmBooking(Booking booking) {
-            booking.setState(new ConfirmedState());
-            System.out.println("Booking moved from Pending -> Confirmed");
+            Instance(Path dir) throws IOException {
+                UserDirectory users = seedUsers();
+                BookingService bookings = new BookingService(users, seedHotels(), seedTransport());
+                Payment payment = new Payment(1, "Online", 20000);
+                payment.setPipeline(new PaymentPipeline(new SimulatedGateway(0, 0)));
+                journal = BookingJournal.open(dir);
+                bookings.restore(journal.recovered());
+                payment.restore(journal.recovered());
+                bookings.setJournal(journal);
+                payment.setJournal(journal);
+                server = new TravelServer(new InetSocketAddress("localhost", 0), users, bookings, payment);
+                server.restoreDue(journal.recovered().amountDue);
+                server.start();
+            }
+
+            void stop() throws IOException {
+                server.stop();
+                journal.close();
+            }
         }
-        public void cancelBooking(Booking booking) {
-            booking.setState(new CancelledState());
-            System.out.println("Booking moved from Pending -> Cancelled");
+
+        static int run() throws IOException, InterruptedException {
+            Path dir = Files.createTempDirectory("travel-selftest");
+            try {
+                return new SelfTest().exercise(dir);
+            } finally {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path p : files) Files.deleteIfExists(p);
+                }
+                Files.deleteIfExists(dir);
+            }
         }
-        public String stateName() { return "PENDING"; }
-    }
 
-    static class ConfirmedState implements BookingState {
-        public void confirmBooking(Booking booking) {
-            System.out.println("Booking already confirmed.");
+        private int exercise(Path dir) throws IOException, InterruptedException {
+            Instance first = new Instance(dir);
+            base = "http://localhost:" + first.server.port();
+            String tomorrow = LocalDate.now().plusDays(1).toString();
+            try {
+                get("/hotels?location=Hubli", 200, "Hotel 1 : Denissons : Hubli");
+                get("/hotels?minRating=4", 400, "ERROR 4001");
+                get("/vehicles?from=Hubli&to=Bangalore", 200, "Vehicle 3001 : Train");
+                get("/itinerary?from=Hubli&to=Bangalore", 200, "Itinerary: 1 leg(s)");
+                post("/login", "userId=101&password=wrong", 401, "ERROR 3001");
+                post("/book/hotel", "token=nope&hotelId=1&rooms=1", 401, "ERROR 3001");
+                String token = token(post("/login", "userId=101&password=123al", 200, "token="));
+
+                post("/book/hotel", "token=" + token + "&hotelId=1&rooms=2", 200, "charge=10000.00 line=1");
+                post("/book/hotel", "token=" + token + "&hotelId=1&rooms=999", 409, "ERROR 2005");
+                post("/book/hotel", "token=" + token + "&hotelId=999&rooms=1", 404, "ERROR 2001");
+                post("/book/hotel", "token=" + token + "&hotelId=1&rooms=1&date=2000-01-01", 400, "ERROR 4002");
+                post("/book/hotel", "token=" + token + "&hotelId=2&rooms=1&date=" + tomorrow + "&nights=2", 200, "charge=6000.00 line=2");
+                get("/booking?token=" + token, 200, "state=CONFIRMED");
+                post("/pay", "token=" + token + "&method=wallet", 200, "paid=16000.00");
+                post("/cancel", "token=" + token + "&line=2", 200, "refund=6000.00");
+                post("/cancel", "token=" + token + "&line=2", 404, "ERROR 2011");
+                post("/cancel", "token=" + token, 200, "refund=10000.00");
+                post("/cancel", "token=" + token, 400, "ERROR 2004");
+
+                post("/checkout", "token=" + token + "&items=hotel:2:1,vehicle:3001:2&method=wallet", 200, "total=4600.00");
+                post("/checkout", "token=" + token + "&items=hotel:1:1,vehicle:3001:5000", 409, "ERROR 2007");
+
+                post("/admin/reprice", "token=" + token + "&rules=location:Hubli:10", 403, "ERROR 101");
+                String admin = token(post("/login", "userId=1001&password=qqq", 200, "token="));
+                post("/admin/reprice", "token=" + admin + "&rules=location:Hubli:10", 200, "hotels=2");
+                get("/hotels?location=Hubli", 200, "Price=5500.00");
+
+                // An unpaid seat on the paid checkout's booking: after a restart both lines are
+                // back, and cancelling refunds only what was paid.
+                post("/book/vehicle", "token=" + token + "&vehicleId=3001&qty=1", 200, "charge=880.00");
+                post("/logout", "token=" + admin, 200, "ok");
+                get("/metrics", 200, "search_cache");
+            } finally {
+                first.stop();
+            }
+
+            Instance second = new Instance(dir);
+            base = "http://localhost:" + second.server.port();
+            try {
+                get("/hotels?location=Hubli", 200, "Price=5500.00");
+                String token = token(post("/login", "userId=101&password=123al", 200, "token="));
+                get("/booking?token=" + token, 200, "@ 880.00");
+                get("/booking?token=" + token, 200, "@ 800.00 = 1600.00");
+                post("/cancel", "token=" + token, 200, "refund=4600.00");
+            } finally {
+                second.stop();
+            }
+            System.out.println(checks - failures + "/" + checks + " checks passed");
+            return failures;
         }
-        public void cancelBooking(Booking booking) {
-            booking.setState(new CancelledState());
-            System.out.println("Booking moved from Confirmed -> Cancelled");
+
+        private static String token(String body) { return body.startsWith("token=") ? body.substring(6).trim() : ""; }
+
+        private String get(String path, int status, String expected) throws IOException, InterruptedException {
+            return check("GET " + path, HttpRequest.newBuilder(URI.create(base + path)).GET(), status, expected);
         }
-        public String stateName() { return "CONFIRMED"; }
-    }
 
-    static class CancelledState implements BookingState {
-        public void confirmBooking(Booking booking) {
-            System.out.println("Cannot confirm a cancelled booking.");
+        private String post(String path, String form, int status, String expected) throws IOException, InterruptedException {
+            HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(base + path))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(form));
+            return check("POST " + path + " " + form, req, status, expected);
         }
-        public void cancelBooking(Booking booking) {
-            System.out.println("Booking already cancelled.");
+
+        private String check(String what, HttpRequest.Builder req, int status, String expected) throws IOException, InterruptedException {
+            HttpResponse<String> res = client.send(req.build(), HttpResponse.BodyHandlers.ofString());
+            checks++;
+            boolean ok = res.statusCode() == status && res.body().contains(expected);
+            if (!ok) failures++;
+            System.out.println((ok ? "ok   " : "FAIL ") + what + (ok ? "" : "\n     expected " + status + " with \"" + expected
+                    + "\", got " + res.statusCode() + ": " + res.body().trim()));
+            return res.body();
         }
-        public String stateName() { return "CANCELLED"; }
     }
 
-    static class Booking {
-        int bookingId;
-        List<User> users = new ArrayList<>();
-        List<Hotel> availableHotels = new ArrayList<>();
-        List<Transportation> availableTransport = new ArrayList<>();
-        List<Hotel> bookedHotels = new ArrayList<>();
-        List<Vehicle> bookedVehicles = new ArrayList<>();
-        BookingState currentState;
-
-        public Booking(int id) {
-            this.bookingId = id;
-            this.currentState = new PendingState();
+    // ----- Benchmarks -----
+    // No build tool or JMH in this project, so this is a small JMH-style harness:
+    // warmup + measured time-boxed iterations, every op's result folded into a
+    // sink so the JIT cannot drop it, and a fresh fixture per size.
+    //
+    //   java TravelApp --bench [sizes] [threads] [ops]
+    //   e.g. java -Xmx4g TravelApp --bench 1000,100000,1000000 1,4,8 hotelSearchIndexed,hotelSearchScan
+    //
+    // The *Scan benchmarks replay the original list-scan code so new indexes
+    // can be compared against it on the same data.
+    static class Benchmarks {
+        static final String[] CITIES;
+        static {
+            String[] known = {"Hubli", "Goa", "Bangalore", "Gadag", "Belgaum", "Mumbai", "Pune", "Mysore", "Chennai", "Hyderabad"};
+            CITIES = new String[200];
+            for (int i = 0; i < CITIES.length; i++) CITIES[i] = i < known.length ? known[i] : "City" + i;
         }
+        static final String[] VEHICLE_TYPES = {"Bus", "Train", "Flight", "Cab"};
+        static final String[] FRANCHISES = {"SRS", "SpiceJet", "RaniChennama", "VRL", "IndiGo", "KSRTC"};
 
-        public void setState(BookingState s) { this.currentState = s; }
-        public String getStateName() { return currentState.stateName(); }
+        interface Op {
+            // Returns any value derived from the work; it is accumulated into the sink.
+            long run(ThreadLocalRandom rnd, int thread) throws Exception;
+        }
 
-        public double bookHotel(Scanner sc) {
-            System.out.print("Enter Hotel ID to book: ");
-            int hid = readInt(sc);
-            System.out.print("Enter number of rooms: ");
-            int rooms = readInt(sc);
-            Hotel found = null;
-            for (Hotel h : availableHotels) if (h.getHotelId() == hid) { found = h; break; }
-            if (found == null) {
-                System.out.println("Hotel not found.");
-                return 0;
-            }
-            double charge = rooms * found.pricePerRoom;
-            // Create a shallow copy to represent booked hotel (store charged price)
-            Hotel booked = new Hotel(found.hotelId, found.name, found.location, found.rating, charge);
-            bookedHotels.add(booked);
-            currentState.confirmBooking(this); // move to Confirmed
-            return charge;
-        }
-
-        public double bookVehicle(Scanner sc) {
-            System.out.print("Enter source: ");
-            String s = sc.nextLine().trim();
-            System.out.print("Enter destination: ");
-            String d = sc.nextLine().trim();
-            // List vehicles matching route
-            List<Vehicle> matches = new ArrayList<>();
-            for (Transportation t : availableTransport) {
-                for (Vehicle v : t.vehicles) {
-                    if (v.from.equalsIgnoreCase(s) && v.to.equalsIgnoreCase(d)) matches.add(v);
-                }
+        interface OpFactory {
+            // Called once per iteration so stateful benchmarks get a fresh service.
+            Op create(Fixture f);
+        }
+
+        static final class Fixture {
+            final int size;
+            final UserDirectory users = new UserDirectory();
+            final HotelCatalog hotels;
+            final TransportCatalog transports;
+
+            Fixture(int size) {
+                this.size = size;
+                this.hotels = new HotelCatalog(size);
+                this.transports = new TransportCatalog(size);
             }
-            if (matches.isEmpty()) {
-                System.out.println("No vehicles found for route.");
-                return 0;
+
+            private MappedCatalog mapped;
+            private HotelColumns columns;
+
+            HotelColumns columns() {
+                if (columns == null) columns = HotelColumns.of(hotels);
+                return columns;
             }
-            System.out.println("Matching vehicles:");
-            for (Vehicle v : matches) v.printVehicleDetails();
-            System.out.print("Enter vehicleId to book: ");
-            int vid = readInt(sc);
-            System.out.print("Enter number of tickets: ");
-            int qty = readInt(sc);
-            Vehicle sel = null;
-            for (Vehicle v : matches) if (v.vehicleId == vid) { sel = v; break; }
-            if (sel == null) {
-                System.out.println("Vehicle not found among matches.");
-                return 0;
-            }
-            double charge = qty * sel.price;
-            // Add a shallow booked vehicle (with charged amount stored in price)
-            Vehicle booked = new Vehicle(sel.vehicleId, sel.vehicleType, sel.franchiseName, sel.seatingCapacity, sel.from, sel.to, charge);
-            bookedVehicles.add(booked);
-            currentState.confirmBooking(this);
-            return charge;
-        }
-
-        public void generateReceipt(int userId) {
-            for (User u : users) {
-                if (u.getUserId() == userId) {
-                    u.generateReceipt();
-                    return;
+
+            BookingService newBookingService() { return new BookingService(users, hotels, transports); }
+
+            Checkout newCheckout() {
+                BookingService svc = newBookingService();
+                Payment payment = new Payment(1, "Online", 1e15);
+                String dir = System.getProperty("bench.journalDir");
+                if (dir != null) {
+                    try {
+                        BookingJournal journal = BookingJournal.open(Files.createTempDirectory(Paths.get(dir), "checkout"));
+                        svc.setJournal(journal);
+                        payment.setJournal(journal);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return new Checkout(svc, payment);
+            }
+
+            // Written to a temp file on first use and kept open for the remaining iterations.
+            MappedCatalog mapped() {
+                if (mapped == null) {
+                    try {
+                        Path file = Files.createTempFile("travel-catalog-" + size, ".bin");
+                        file.toFile().deleteOnExit();
+                        MappedCatalog.write(file, hotels, transports);
+                        mapped = MappedCatalog.open(file);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
                 }
+                return mapped;
             }
-            System.out.println("User not found in booking context.");
         }
 
-        public double cancellation() {
-            double sum = 0;
-            for (Hotel h : bookedHotels) sum += h.pricePerRoom;
-            for (Vehicle v : bookedVehicles) sum += v.price;
-            currentState.cancelBooking(this);
-            return sum;
+        static Fixture generate(int size, long seed) {
+            Random rnd = new Random(seed);
+            Fixture f = new Fixture(size);
+            // Hashing is deliberately slow, so users share a handful of precomputed credentials.
+            Credential[] creds = new Credential[16];
+            for (int i = 0; i < creds.length; i++) creds[i] = Credential.of("pw" + i);
+            for (int i = 1; i <= size; i++) {
+                f.users.add(new Customer(i, "user", "", CITIES[i % CITIES.length], creds[i & 15]));
+            }
+            for (int i = 1; i <= size; i++) {
+                f.hotels.add(new Hotel(i, "Hotel" + (i & 4095), CITIES[rnd.nextInt(CITIES.length)],
+                        1 + rnd.nextInt(5), 1000 + rnd.nextInt(9000), 1 << 28));
+            }
+            // Routes are consecutive city pairs so every route carries several vehicles.
+            int routes = Math.max(1, Math.min(size / 8, CITIES.length * (CITIES.length - 1)));
+            Transportation[] groups = new Transportation[routes];
+            for (int r = 0; r < routes; r++) {
+                String from = CITIES[r % CITIES.length];
+                String to = CITIES[(r / CITIES.length + 1 + r) % CITIES.length];
+                groups[r] = new Transportation(from, to);
+            }
+            for (int i = 1; i <= size; i++) {
+                Transportation t = groups[rnd.nextInt(routes)];
+                t.addVehicle(new Vehicle(i, VEHICLE_TYPES[i & 3], FRANCHISES[i % FRANCHISES.length], 1 << 28,
+                        t.source, t.destination, 200 + rnd.nextInt(8000)));
+            }
+            for (Transportation t : groups) f.transports.addTransportation(t);
+            return f;
         }
-    }
 
-    // ----- Payment -----
-    static class Payment {
-        int paymentId;
-        String paymentMode;
-        double wallet;
+        static Cart randomCart(Fixture f, ThreadLocalRandom rnd) {
+            return new Cart(1 + rnd.nextInt(f.size), Arrays.asList(
+                    InventoryEngine.Reservation.rooms(1 + rnd.nextInt(f.size), 0, 1, 1),
+                    InventoryEngine.Reservation.seats(1 + rnd.nextInt(f.size), 0, 1)));
+        }
 
-        public Payment(int id, String mode, double wallet) {
-            this.paymentId = id;
-            this.paymentMode = mode;
-            this.wallet = wallet;
+        // The fixture's hotels with 10-49 rooms each (its own have effectively unlimited rooms)
+        // and about twenty random multi-night bookings per hotel over the next year.
+        static BookingService bookedCalendars(Fixture f) {
+            Random rnd = new Random(42);
+            HotelCatalog hotels = new HotelCatalog(f.size);
+            for (Hotel h : f.hotels.all()) {
+                hotels.add(new Hotel(h.hotelId, h.name, h.location, h.rating, h.pricePerRoom, 10 + rnd.nextInt(40)));
+            }
+            InventoryEngine inventory = new InventoryEngine(hotels, f.transports);
+            for (Hotel h : hotels.all()) {
+                for (int i = 0; i < 20; i++) {
+                    inventory.reserve(InventoryEngine.Reservation.rooms(h.hotelId, rnd.nextInt(358), 1 + rnd.nextInt(7),
+                            1 + rnd.nextInt(h.totalRooms / 2)));
+                }
+            }
+            BookingService svc = new BookingService(f.users, hotels, f.transports, inventory);
+            svc.searchColumns();
+            return svc;
         }
 
-        public boolean makePayment(double amount, Scanner sc) {
-            System.out.printf("Bill: %.2f\n", amount);
-            System.out.println("[1] Wallet\n[2] UPI/Card (simulate)");
-            System.out.print("Choose payment method: ");
-            int choice = readInt(sc);
-            if (choice == 1) {
-                if (wallet >= amount) {
-                    wallet -= amount;
-                    System.out.println("Payment successful via wallet. Remaining wallet: " + wallet);
-                    return true;
-                } else {
-                    System.out.println("Insufficient wallet balance.");
-                    return false;
+        // Low-numbered cities come up far more often, like real destination traffic.
+        static String popularCity(ThreadLocalRandom rnd) {
+            return CITIES[rnd.nextInt(1 + rnd.nextInt(CITIES.length))];
+        }
+
+        static final Map<String, OpFactory> OPS = new LinkedHashMap<>();
+        static {
+            OPS.put("hotelSearchScan", f -> {
+                List<Hotel> list = f.hotels.all();
+                return (rnd, t) -> {
+                    String dest = CITIES[rnd.nextInt(CITIES.length)];
+                    long n = 0;
+                    for (Hotel h : list) if (h.getLocation().equalsIgnoreCase(dest)) n++;
+                    return n;
+                };
+            });
+            OPS.put("hotelSearchIndexed", f -> (rnd, t) -> f.hotels.findByLocation(CITIES[rnd.nextInt(CITIES.length)]).size());
+            // Skewed filtered searches with a hotel price change every 256 ops, uncached and cached.
+            OPS.put("hotelFilterUncached", f -> {
+                BookingService svc = f.newBookingService();
+                svc.searchColumns();
+                return (rnd, t) -> {
+                    if (rnd.nextInt(256) == 0) svc.updateHotelPrice(1 + rnd.nextInt(f.size), 100 + rnd.nextInt(10_000));
+                    return svc.searchHotelsUncached(popularCity(rnd), 1 + rnd.nextInt(3), 2500 * (1 + rnd.nextInt(4)), 20).size();
+                };
+            });
+            OPS.put("hotelFilterCached", f -> {
+                BookingService svc = f.newBookingService();
+                svc.searchColumns();
+                return (rnd, t) -> {
+                    if (rnd.nextInt(256) == 0) svc.updateHotelPrice(1 + rnd.nextInt(f.size), 100 + rnd.nextInt(10_000));
+                    return svc.searchHotels(popularCity(rnd), 1 + rnd.nextInt(3), 2500 * (1 + rnd.nextInt(4)), 20).size();
+                };
+            });
+            // "N rooms free for these nights" over part-booked calendars: the level bitmaps,
+            // then the same search reading each night's count.
+            OPS.put("availabilityBitmap", f -> {
+                BookingService svc = bookedCalendars(f);
+                return (rnd, t) -> svc.searchAvailableHotels(popularCity(rnd), rnd.nextInt(358), 1 + rnd.nextInt(7),
+                        1 + rnd.nextInt(24), 0, Double.MAX_VALUE, 20).size();
+            });
+            OPS.put("availabilityCounts", f -> {
+                BookingService svc = bookedCalendars(f);
+                InventoryEngine inventory = svc.inventory();
+                return (rnd, t) -> {
+                    int from = rnd.nextInt(358), to = from + 1 + rnd.nextInt(7), rooms = 1 + rnd.nextInt(24);
+                    return svc.searchColumns().query(popularCity(rnd), 0, Double.MAX_VALUE, 20, id -> {
+                        for (int d = from; d < to; d++) if (inventory.remainingRooms(id, d) < rooms) return false;
+                        return true;
+                    }).length;
+                };
+            });
+            OPS.put("routeSearchScan", f -> {
+                List<Transportation> list = f.transports.transportations();
+                return (rnd, t) -> {
+                    String s = CITIES[rnd.nextInt(CITIES.length)];
+                    String d = CITIES[rnd.nextInt(CITIES.length)];
+                    long n = 0;
+                    for (Transportation tr : list) {
+                        for (Vehicle v : tr.vehicles) if (v.from.equalsIgnoreCase(s) && v.to.equalsIgnoreCase(d)) n++;
+                    }
+                    return n;
+                };
+            });
+            OPS.put("routeSearchIndexed", f -> (rnd, t) -> {
+                List<Transportation> list = f.transports.transportations();
+                Transportation tr = list.get(rnd.nextInt(list.size()));
+                return f.transports.findByRoute(tr.source, tr.destination).size();
+            });
+            OPS.put("itineraryUncached", f -> {
+                ItineraryEngine engine = new ItineraryEngine(f.transports);
+                return (rnd, t) -> {
+                    ItineraryEngine.Itinerary it = engine.findUncached(CITIES[rnd.nextInt(CITIES.length)],
+                            CITIES[rnd.nextInt(CITIES.length)], ItineraryEngine.Mode.CHEAPEST);
+                    return it == null ? 0 : it.hops();
+                };
+            });
+            OPS.put("itineraryCached", f -> {
+                // Hot city pairs: queries drawn from the first 32 cities, cache filled up front.
+                ItineraryEngine engine = new ItineraryEngine(f.transports);
+                for (int i = 0; i < 32; i++) {
+                    for (int j = 0; j < 32; j++) engine.find(CITIES[i], CITIES[j], ItineraryEngine.Mode.CHEAPEST);
                 }
-            } else {
-                // Simulate external payment success
-                System.out.println("Payment successful via external method.");
-                return true;
+                return (rnd, t) -> {
+                    ItineraryEngine.Itinerary it = engine.find(CITIES[rnd.nextInt(32)],
+                            CITIES[rnd.nextInt(32)], ItineraryEngine.Mode.CHEAPEST);
+                    return it == null ? 0 : it.hops();
+                };
+            });
+            OPS.put("hotelFilterStream", f -> {
+                List<Hotel> list = f.hotels.all();
+                return (rnd, t) -> {
+                    String dest = CITIES[rnd.nextInt(CITIES.length)];
+                    return list.stream()
+                            .filter(h -> h.getLocation().equalsIgnoreCase(dest) && h.rating >= 4 && h.pricePerRoom <= 4000)
+                            .sorted(Comparator.comparingDouble(Hotel::getPricePerRoom))
+                            .count();
+                };
+            });
+            OPS.put("hotelFilterColumns", f -> {
+                HotelColumns cols = f.columns();
+                return (rnd, t) -> cols.query(CITIES[rnd.nextInt(CITIES.length)], 4, 4000, Integer.MAX_VALUE).length;
+            });
+            OPS.put("hotelFilterColumnsAll", f -> {
+                HotelColumns cols = f.columns();
+                return (rnd, t) -> cols.queryAll(4, 1000 + rnd.nextInt(9000), 50).length;
+            });
+            OPS.put("mappedHotelLookup", f -> {
+                MappedCatalog mapped = f.mapped();
+                return (rnd, t) -> {
+                    int rec = mapped.hotelRecord(1 + rnd.nextInt(f.size));
+                    return (long) mapped.hotelPrice(rec) + mapped.hotelRating(rec);
+                };
+            });
+            OPS.put("mappedHotelSearch", f -> {
+                MappedCatalog mapped = f.mapped();
+                return (rnd, t) -> mapped.hotelRecordsAt(CITIES[rnd.nextInt(CITIES.length)]).length;
+            });
+            OPS.put("bookHotel", f -> {
+                BookingService svc = f.newBookingService();
+                return (rnd, t) -> (long) svc.bookHotel(1 + t, 1 + rnd.nextInt(f.size), 1).charge;
+            });
+            // Admin batch of 64 hotel price changes published as one snapshot.
+            OPS.put("priceBatchPublish", f -> {
+                BookingService svc = f.newBookingService();
+                return (rnd, t) -> {
+                    PriceBook.Batch batch = svc.prices().begin();
+                    for (int i = 0; i < 64; i++) batch.stageHotel(1 + rnd.nextInt(f.size), 1000 + rnd.nextInt(9000));
+                    return svc.publishPrices(batch);
+                };
+            });
+            // Whole-catalogue pass: every hotel and vehicle matches a rule.
+            OPS.put("repriceAll", f -> {
+                BookingService svc = f.newBookingService();
+                PricingEngine engine = new PricingEngine(svc);
+                List<PricingEngine.Rule> rules = Arrays.asList(PricingEngine.Rule.rating(1, 5, 1),
+                        PricingEngine.Rule.vehicleType("Bus", 2), PricingEngine.Rule.vehicleType("Train", 2),
+                        PricingEngine.Rule.vehicleType("Flight", 2), PricingEngine.Rule.vehicleType("Cab", 2));
+                return (rnd, t) -> engine.reprice(rules, Collections.emptyList(), 0).version;
+            });
+            OPS.put("bookVehicle", f -> {
+                BookingService svc = f.newBookingService();
+                return (rnd, t) -> (long) svc.bookVehicle(1 + t, 1 + rnd.nextInt(f.size), 1).charge;
+            });
+            OPS.put("bookAndCancel", f -> {
+                BookingService svc = f.newBookingService();
+                return (rnd, t) -> {
+                    int user = 1 + rnd.nextInt(f.size);
+                    svc.bookHotel(user, 1 + rnd.nextInt(f.size), 1);
+                    return (long) svc.cancel(user).refund;
+                };
+            });
+            OPS.put("cancelLine", f -> {
+                BookingService svc = f.newBookingService();
+                return (rnd, t) -> {
+                    int user = 1 + rnd.nextInt(f.size);
+                    BookingResult r = svc.bookHotel(user, 1 + rnd.nextInt(f.size), 1);
+                    return (long) svc.cancelLine(user, r.lineNo).refund;
+                };
+            });
+            // Hotel + vehicle cart booked and paid from the wallet; one cart per op, or 64 per op.
+            // -Dbench.journalDir=<dir> makes them durable, which is where batching pays most.
+            OPS.put("checkoutSingle", f -> {
+                Checkout checkout = f.newCheckout();
+                return (rnd, t) -> checkout.checkout(randomCart(f, rnd)).join().status.ordinal();
+            });
+            OPS.put("checkoutBatch64", f -> {
+                Checkout checkout = f.newCheckout();
+                return (rnd, t) -> {
+                    List<Cart> carts = new ArrayList<>(64);
+                    for (int i = 0; i < 64; i++) carts.add(randomCart(f, rnd));
+                    return checkout.checkoutAll(carts).join().size();
+                };
+            });
+            OPS.put("makePayment", f -> {
+                Payment payment = new Payment(1, "Online", 1e15);
+                return (rnd, t) -> payment.makePayment(1 + rnd.nextInt(f.size), 1 + rnd.nextInt(100), Payment.Method.WALLET).status.ordinal();
+            });
+            OPS.put("refundPayment", f -> {
+                Payment payment = new Payment(1, "Online", 0);
+                return (rnd, t) -> payment.refundPayment(1 + rnd.nextInt(f.size), 1 + rnd.nextInt(100)).status.ordinal();
+            });
+            // End-to-end latency of an external charge; -Dbench.gatewayMillis sets the simulated delay.
+            OPS.put("externalPayment", f -> {
+                Payment payment = new Payment(1, "Online", 0);
+                payment.setPipeline(new PaymentPipeline(
+                        new SimulatedGateway(Long.getLong("bench.gatewayMillis", 5), 0.05), 4096, 1000, 3, 5));
+                return (rnd, t) -> payment.makePayment(1 + rnd.nextInt(f.size), 100, Payment.Method.EXTERNAL).status.ordinal();
+            });
+            OPS.put("sessionLookup", f -> {
+                SessionCache cache = new SessionCache();
+                String[] tokens = new String[Math.min(f.size, 100_000)];
+                for (int i = 0; i < tokens.length; i++) tokens[i] = cache.create(f.users.find(1 + i)).token;
+                return (rnd, t) -> cache.get(tokens[rnd.nextInt(tokens.length)]).userId;
+            });
+            OPS.put("metricsRecord", f -> {
+                Metrics.Timer timer = new Metrics().timer(Metrics.Op.BOOK_HOTEL);
+                return (rnd, t) -> {
+                    timer.success(timer.start());
+                    return 0;
+                };
+            });
+            OPS.put("login", f -> {
+                Register reg = new Register();
+                return (rnd, t) -> {
+                    int id = 1 + rnd.nextInt(f.size);
+                    return reg.authenticate(f.users, id, "pw" + (id & 15));
+                };
+            });
+        }
+
+        static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 2);
+        static final int MEASURE_ITERATIONS = Integer.getInteger("bench.iterations", 3);
+        static final long ITERATION_MILLIS = Long.getLong("bench.iterMillis", 300);
+
+        static volatile long sink;
+
+        public static void main(String[] args) throws Exception {
+            int[] sizes = parseInts(args.length > 0 ? args[0] : "1000,100000,1000000");
+            int[] threads = parseInts(args.length > 1 ? args[1] : "1," + Runtime.getRuntime().availableProcessors());
+            List<String> ops = args.length > 2 ? Arrays.asList(args[2].split(",")) : new ArrayList<>(OPS.keySet());
+            System.out.printf("%-20s %10s %8s %16s %12s%n", "Benchmark", "size", "threads", "ops/s", "ns/op");
+            for (int size : sizes) {
+                Fixture f = generate(size, 42);
+                for (String name : ops) {
+                    OpFactory factory = OPS.get(name);
+                    if (factory == null) throw new IllegalArgumentException("Unknown benchmark: " + name);
+                    for (int t : threads) {
+                        double[] opsPerSec = new double[MEASURE_ITERATIONS];
+                        for (int i = 0; i < WARMUP_ITERATIONS; i++) iteration(factory.create(f), t);
+                        for (int i = 0; i < MEASURE_ITERATIONS; i++) opsPerSec[i] = iteration(factory.create(f), t);
+                        double mean = Arrays.stream(opsPerSec).average().orElse(0);
+                        System.out.printf("%-20s %10d %8d %16.0f %12.1f%n", name, size, t, mean, t * 1e9 / mean);
+                    }
+                }
+            }
+        }
+
+        // Runs `op` on `threads` threads for one iteration and returns total ops/s.
+        static double iteration(Op op, int threads) throws InterruptedException {
+            LongAdder done = new LongAdder();
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch finished = new CountDownLatch(threads);
+            long[] elapsed = new long[threads];
+            Throwable[] failure = new Throwable[1];
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                Thread th = new Thread(() -> {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    long acc = 0, n = 0;
+                    try {
+                        start.await();
+                        long begin = System.nanoTime();
+                        long deadline = begin + ITERATION_MILLIS * 1_000_000L;
+                        long now;
+                        do {
+                            for (int k = 0; k < 16; k++) acc += op.run(rnd, id);
+                            n += 16;
+                        } while ((now = System.nanoTime()) < deadline);
+                        elapsed[id] = now - begin;
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    } finally {
+                        done.add(n);
+                        sink += acc;
+                        finished.countDown();
+                    }
+                }, "bench-" + t);
+                th.start();
             }
+            start.countDown();
+            finished.await();
+            if (failure[0] != null) throw new IllegalStateException("Benchmark failed", failure[0]);
+            long maxElapsed = Arrays.stream(elapsed).max().orElse(1);
+            return done.sum() * 1e9 / maxElapsed;
         }
 
-        public void refundPayment(double amount) {
-            wallet += amount;
-            System.out.println("Refund processed. Wallet credited by: " + amount);
-            System.out.println("Updated wallet balance: " + wallet);
+        static int[] parseInts(String csv) {
+            return Arrays.stream(csv.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
         }
     }
 
+    // ----- Utility: unpaid amounts -----
+    // Nets a cancellation against what the user still owes and returns the part
+    // that was actually paid, i.e. what should go back to the wallet.
+    static double offsetDue(Map<Integer, Double> amountDue, int userId, double credit) {
+        double[] refund = {credit};
+        amountDue.computeIfPresent(userId, (id, due) -> {
+            double used = Math.min(due, credit);
+            refund[0] = credit - used;
+            return due - used > 0.005 ? due - used : null;
+        });
+        return refund[0];
+    }
+
     // ----- Utility: read int robustly -----
     private static int readInt(Scanner sc) {
         while (true) {
@@ -393,54 +6401,131 @@ public class TravelApp {
         }
     }
 
+    // ----- Utility: read a yyyy-MM-dd date as an engine day, blank for today -----
+    private static int readDay(BookingService svc, Scanner sc) {
+        while (true) {
+            String s = sc.nextLine().trim();
+            if (s.isEmpty()) return svc.today();
+            try {
+                return svc.dayOf(s);
+            } catch (ApplicationException e) {
+                System.out.print(e.getMessage() + ". Try again: ");
+            }
+        }
+    }
+
     // ----- Main program -----
-    public static void main(String[] args) {
-        Scanner sc = new Scanner(System.in);
-        List<User> users = new ArrayList<>();
-        List<Hotel> hotels = new ArrayList<>();
-        List<Transportation> transportList = new ArrayList<>();
+    public static void main(String[] args) throws IOException {
+        // Runs the HTTP API checks on its own seed data and journal, then exits; see SelfTest.
+        if (args.length > 0 && args[0].equals("--selftest")) {
+            int failed;
+            try {
+                failed = SelfTest.run();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            System.exit(failed == 0 ? 0 : 1);
+        }
+        UserDirectory users = seedUsers();
+        HotelCatalog hotels;
+        TransportCatalog transportList;
+        // -Dtravel.catalog=<file> starts from a catalogue written by --write-catalog instead of the sample data.
+        String catalogFile = System.getProperty("travel.catalog");
+        if (catalogFile != null) {
+            try (MappedCatalog mapped = MappedCatalog.open(Paths.get(catalogFile))) {
+                hotels = new HotelCatalog(mapped.hotelCount());
+                transportList = new TransportCatalog(mapped.vehicleCount());
+                mapped.loadInto(hotels, transportList);
+                System.out.println("Catalog: " + mapped.hotelCount() + " hotels, " + mapped.vehicleCount() + " vehicles from " + catalogFile);
+            }
+        } else {
+            hotels = seedHotels();
+            transportList = seedTransport();
+        }
+        // -Dtravel.hotelFeed / -Dtravel.vehicleFeed load partner feeds (.csv or .jsonl) on top of the seed data.
+        String hotelFeed = System.getProperty("travel.hotelFeed");
+        if (hotelFeed != null) System.out.println("Hotels: " + CatalogFeed.importHotels(Paths.get(hotelFeed), hotels));
+        String vehicleFeed = System.getProperty("travel.vehicleFeed");
+        if (vehicleFeed != null) System.out.println("Vehicles: " + CatalogFeed.importVehicles(Paths.get(vehicleFeed), transportList));
+        BookingService bookingService = new BookingService(users, hotels, transportList);
 
-        // Seed some users
-        users.add(new Customer(101, "sachin", "sac@gmail.com", "Hubli", "123al"));
-        users.add(new Customer(102, "alwyn", "alw@gmail.com", "Hubli", "123ay"));
-        users.add(new Customer(103, "pavan", "pav123@gmail.com", "Gadag", "pav123"));
-        users.add(new Admin(1001, "ascii", "as@gmail.com", "Bangalore", "qqq"));
-        users.add(new Admin(1002, "robert", "rob@gmail.com", "Belgaum", "aaa"));
+        Payment payment = new Payment(1, "Online", 20000);
+        // -Dtravel.gatewayMillis / -Dtravel.gatewayFailureRate tune the simulated card/UPI gateway.
+        payment.setPipeline(new PaymentPipeline(new SimulatedGateway(
+                Long.getLong("travel.gatewayMillis", 0),
+                Double.parseDouble(System.getProperty("travel.gatewayFailureRate", "0")))));
 
-        // Seed hotels
-        hotels.add(new Hotel(1, "Denissons", "Hubli", 5, 5000));
-        hotels.add(new Hotel(2, "TravelInn", "Hubli", 4, 3000));
-        hotels.add(new Hotel(3, "Pavan'sHotel", "Bangalore", 4, 4000));
-        hotels.add(new Hotel(4, "Richid", "Bangalore", 3, 3800));
+        // -Dtravel.dataDir=<dir> makes bookings, payments and price changes durable.
+        String dataDir = System.getProperty("travel.dataDir");
+        BookingJournal journal = null;
+        if (dataDir != null) {
+            journal = BookingJournal.open(Paths.get(dataDir));
+            bookingService.restore(journal.recovered());
+            payment.restore(journal.recovered());
+            bookingService.setJournal(journal);
+            payment.setJournal(journal);
+            final BookingJournal j = journal;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    j.snapshot();
+                    j.close();
+                } catch (IOException | UncheckedIOException ignored) {
+                    // Nothing more to do on the way out; the journal tail still replays.
+                }
+            }, "journal-shutdown"));
+        }
 
-        // Seed transport and vehicles
-        Vehicle v1 = new Vehicle(1001, "Bus", "SRS", 50, "Hubli", "Goa", 700);
-        Vehicle v2 = new Vehicle(2001, "Flight", "SpiceJet", 180, "Hubli", "Goa", 5000);
-        Vehicle v3 = new Vehicle(3001, "Train", "RaniChennama", 1000, "Hubli", "Bangalore", 800);
+        if (args.length > 2 && args[0].equals("--export")) {
+            System.out.println(CatalogFeed.exportHotels(Paths.get(args[1]), hotels) + " hotels written to " + args[1]);
+            System.out.println(CatalogFeed.exportVehicles(Paths.get(args[2]), transportList) + " vehicles written to " + args[2]);
+            return;
+        }
 
-        Transportation t1 = new Transportation("Hubli", "Goa");
-        Transportation t2 = new Transportation("Hubli", "Bangalore");
-        t1.addVehicle(v1);
-        t1.addVehicle(v2);
-        t2.addVehicle(v3);
+        if (args.length > 1 && args[0].equals("--write-catalog")) {
+            MappedCatalog.write(Paths.get(args[1]), hotels, transportList);
+            System.out.println("Catalog written to " + args[1]);
+            return;
+        }
 
-        transportList.add(t1);
-        transportList.add(t2);
+        if (args.length > 0 && args[0].equals("--bench")) {
+            try {
+                Benchmarks.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return;
+        }
 
-        Booking booking = new Booking(101);
-        booking.users = users;
-        booking.availableHotels = hotels;
-        booking.availableTransport = transportList;
+        // Live operation metrics for jconsole / any JMX client.
+        Metrics.MBean.register(Metrics.GLOBAL);
 
-        Payment payment = new Payment(1, "Online", 20000);
+        if (args.length > 0 && args[0].equals("--serve")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            TravelServer server = new TravelServer(new InetSocketAddress("localhost", port), users, bookingService, payment);
+            if (journal != null) server.restoreDue(journal.recovered().amountDue);
+            server.start();
+            System.out.println("Serving on http://localhost:" + server.port() + "/");
+            return;
+        }
 
+        Scanner sc = new Scanner(System.in);
+        Presenter out = new ConsolePresenter(System.out);
         Register reg = new Register();
-        int loggedInId = -1;
-        double lastCharge = 0.0;
+        SessionCache sessions = new SessionCache();
+        String token = null;
+        // Booked but not yet paid, per user.
+        Map<Integer, Double> amountDue = journal == null ? new HashMap<>() : new HashMap<>(journal.recovered().amountDue);
+        Checkout checkout = new Checkout(bookingService, payment);
         boolean running = true;
 
         System.out.println("WELCOME!!!");
         while (running) {
+            SessionCache.Session session = sessions.get(token);
+            if (token != null && session == null) {
+                System.out.println("Session expired. Please login again.");
+                token = null;
+            }
+            int loggedInId = session != null ? session.userId : -1;
             System.out.println("\nMENU");
             System.out.println("[1] Login");
             System.out.println("[2] Visit Profile");
@@ -449,38 +6534,41 @@ public class TravelApp {
             System.out.println("[5] Book Hotel rooms");
             System.out.println("[6] Display available Transportation services (by route)");
             System.out.println("[7] Book Tickets for travelling");
-            System.out.println("[8] Make Payment for last booking");
+            System.out.println("[8] Make Payment for unpaid bookings");
             System.out.println("[9] Cancel Booking & Refund (if paid)");
             System.out.println("[10] Update Hotel room prices (admin only)");
             System.out.println("[11] Update Ticket prices (admin only)");
             System.out.println("[12] Exit");
+            System.out.println("[13] Book a trip (hotel + transport) and pay in one step");
             System.out.print("Enter choice: ");
             int ch = readInt(sc);
             switch (ch) {
                 case 1:
-                    loggedInId = reg.login(users, sc);
+                    sessions.invalidate(token);
+                    int id = reg.login(users, sc);
+                    token = id > 0 ? sessions.create(users.find(id)).token : null;
                     break;
                 case 2:
-                    if (loggedInId > 0) {
-                        users.stream().filter(u -> u.getUserId() == loggedInId).forEach(User::printDetails);
+                    if (session != null) {
+                        session.user.printDetails();
                     } else System.out.println("Please login first.");
                     break;
                 case 3:
-                    if (loggedInId > 0) {
-                        users.stream().filter(u -> u.getUserId() == loggedInId).findFirst().ifPresent(u -> u.updateProfile(sc));
+                    if (session != null) {
+                        session.user.updateProfile(sc);
                     } else System.out.println("Please login first.");
                     break;
                 case 4:
                     if (loggedInId > 0) {
                         System.out.print("Enter destination: ");
                         String dest = sc.nextLine().trim();
-                        hotels.stream().filter(h -> h.getLocation().equalsIgnoreCase(dest)).forEach(Hotel::printHotel);
+                        out.hotels(hotels.findByLocation(dest));
                     } else System.out.println("Please login first.");
                     break;
                 case 5:
                     if (loggedInId > 0) {
-                        booking.setState(new PendingState());
-                        lastCharge = booking.bookHotel(sc);
+                        double charge = bookHotel(bookingService, loggedInId, sc, out);
+                        if (charge > 0) amountDue.merge(loggedInId, charge, Double::sum);
                         // after booking customer details shown when paying
                     } else System.out.println("Please login first.");
                     break;
@@ -490,43 +6578,61 @@ public class TravelApp {
                         String s = sc.nextLine().trim();
                         System.out.print("Enter destination: ");
                         String d = sc.nextLine().trim();
-                        for (Transportation t : transportList) {
-                            for (Vehicle v : t.vehicles) {
-                                if (v.from.equalsIgnoreCase(s) && v.to.equalsIgnoreCase(d)) v.printVehicleDetails();
+                        List<Vehicle> direct = transportList.findByRoute(s, d);
+                        if (!direct.isEmpty()) {
+                            out.vehicles(direct);
+                        } else {
+                            // No single vehicle covers it; offer the cheapest connection.
+                            try {
+                                out.itinerary(bookingService.findItinerary(s, d, ItineraryEngine.Mode.CHEAPEST));
+                            } catch (ApplicationException ae) {
+                                out.error(ae);
                             }
                         }
                     } else System.out.println("Please login first.");
                     break;
                 case 7:
                     if (loggedInId > 0) {
-                        booking.setState(new PendingState());
-                        lastCharge = booking.bookVehicle(sc);
+                        double charge = bookVehicle(bookingService, loggedInId, sc, out);
+                        if (charge > 0) amountDue.merge(loggedInId, charge, Double::sum);
                     } else System.out.println("Please login first.");
                     break;
                 case 8:
-                    if (lastCharge > 0) {
+                    double due = amountDue.getOrDefault(loggedInId, 0.0);
+                    if (due > 0) {
                         System.out.println("Receipt details:");
-                        booking.generateReceipt(loggedInId);
-                        boolean paid = payment.makePayment(lastCharge, sc);
+                        bookingService.bookingFor(loggedInId).generateReceipt(loggedInId, out);
+                        boolean paid = pay(payment, loggedInId, due, sc, out);
                         if (!paid) System.out.println("Payment failed.");
-                        else lastCharge = 0; // consider paid
+                        else amountDue.remove(loggedInId);
                     } else {
                         System.out.println("No pending booking amount. Book first.");
                     }
                     break;
                 case 9:
-                    if (!booking.bookedHotels.isEmpty() || !booking.bookedVehicles.isEmpty()) {
-                        double refund = booking.cancellation();
-                        // For simplicity assume we refund immediately to wallet
-                        payment.refundPayment(refund);
-                    } else {
-                        System.out.println("No bookings to cancel.");
+                    try {
+                        Booking open = bookingService.existingBooking(loggedInId);
+                        int line = 0;
+                        if (open != null && open.hasBookings()) {
+                            for (BookingLine l : open.lines()) System.out.println(l);
+                            System.out.print("Line to cancel (0 for the whole booking): ");
+                            line = readInt(sc);
+                        }
+                        CancelResult cancelled = line > 0
+                                ? bookingService.cancelLine(loggedInId, line)
+                                : bookingService.cancel(loggedInId);
+                        out.cancellation(cancelled);
+                        // Whatever was never paid just comes off the bill; only the rest is refunded.
+                        double refund = offsetDue(amountDue, loggedInId, cancelled.refund);
+                        if (refund > 0) out.payment(payment.refundPayment(loggedInId, refund));
+                    } catch (ApplicationException ae) {
+                        out.error(ae);
                     }
                     break;
                 case 10:
                     if (loggedInId > 0) {
                         try {
-                            updateHotelPrice(users, loggedInId, hotels, sc);
+                            updateHotelPrice(session, bookingService, sc, out);
                         } catch (ApplicationException ae) {
                             System.out.println("ERROR!! " + ae.getErrNo() + " : " + ae.getMessage());
                         }
@@ -535,7 +6641,7 @@ public class TravelApp {
                 case 11:
                     if (loggedInId > 0) {
                         try {
-                            updateVehiclePrice(users, loggedInId, transportList, sc);
+                            updateVehiclePrice(session, bookingService, sc, out);
                         } catch (ApplicationException ae) {
                             System.out.println("ERROR!! " + ae.getErrNo() + " : " + ae.getMessage());
                         }
@@ -545,6 +6651,11 @@ public class TravelApp {
                     System.out.println("Exiting... Goodbye!");
                     running = false;
                     break;
+                case 13:
+                    if (loggedInId > 0) {
+                        checkoutTrip(checkout, bookingService, loggedInId, sc, out);
+                    } else System.out.println("Please login first.");
+                    break;
                 default:
                     System.out.println("Invalid choice.");
             }
@@ -553,14 +6664,145 @@ public class TravelApp {
         sc.close();
     }
 
+    // ----- Seed data -----
+    static UserDirectory seedUsers() {
+        UserDirectory users = new UserDirectory();
+        users.add(new Customer(101, "sachin", "sac@gmail.com", "Hubli", "123al"));
+        users.add(new Customer(102, "alwyn", "alw@gmail.com", "Hubli", "123ay"));
+        users.add(new Customer(103, "pavan", "pav123@gmail.com", "Gadag", "pav123"));
+        users.add(new Admin(1001, "ascii", "as@gmail.com", "Bangalore", "qqq"));
+        users.add(new Admin(1002, "robert", "rob@gmail.com", "Belgaum", "aaa"));
+        return users;
+    }
+
+    static HotelCatalog seedHotels() {
+        HotelCatalog hotels = new HotelCatalog();
+        hotels.add(new Hotel(1, "Denissons", "Hubli", 5, 5000, 40));
+        hotels.add(new Hotel(2, "TravelInn", "Hubli", 4, 3000, 25));
+        hotels.add(new Hotel(3, "Pavan'sHotel", "Bangalore", 4, 4000, 30));
+        hotels.add(new Hotel(4, "Richid", "Bangalore", 3, 3800, 15));
+        return hotels;
+    }
+
+    static TransportCatalog seedTransport() {
+        Vehicle v1 = new Vehicle(1001, "Bus", "SRS", 50, "Hubli", "Goa", 700);
+        Vehicle v2 = new Vehicle(2001, "Flight", "SpiceJet", 180, "Hubli", "Goa", 5000);
+        Vehicle v3 = new Vehicle(3001, "Train", "RaniChennama", 1000, "Hubli", "Bangalore", 800);
+        Vehicle v4 = new Vehicle(4001, "Bus", "VRL", 45, "Goa", "Mumbai", 1200);
+
+        Transportation t1 = new Transportation("Hubli", "Goa");
+        Transportation t2 = new Transportation("Hubli", "Bangalore");
+        Transportation t3 = new Transportation("Goa", "Mumbai");
+        t1.addVehicle(v1);
+        t1.addVehicle(v2);
+        t2.addVehicle(v3);
+        t3.addVehicle(v4);
+
+        TransportCatalog transportList = new TransportCatalog();
+        transportList.addTransportation(t1);
+        transportList.addTransportation(t2);
+        transportList.addTransportation(t3);
+        return transportList;
+    }
+
+    // ----- Interactive booking helpers -----
+    private static double bookHotel(BookingService svc, int userId, Scanner sc, Presenter out) {
+        System.out.print("Enter Hotel ID to book: ");
+        int hid = readInt(sc);
+        System.out.print("Enter number of rooms: ");
+        int rooms = readInt(sc);
+        System.out.print("Enter check-in date (yyyy-MM-dd, blank for today): ");
+        int day = readDay(svc, sc);
+        System.out.print("Enter number of nights: ");
+        int nights = readInt(sc);
+        try {
+            BookingResult r = svc.bookHotel(userId, hid, rooms, day, nights);
+            out.booking(r);
+            return r.charge;
+        } catch (ApplicationException ae) {
+            out.error(ae);
+            return 0;
+        }
+    }
+
+    private static double bookVehicle(BookingService svc, int userId, Scanner sc, Presenter out) {
+        System.out.print("Enter source: ");
+        String s = sc.nextLine().trim();
+        System.out.print("Enter destination: ");
+        String d = sc.nextLine().trim();
+        List<Vehicle> matches = svc.transports().findByRoute(s, d);
+        if (matches.isEmpty()) {
+            System.out.println("No vehicles found for route.");
+            return 0;
+        }
+        System.out.println("Matching vehicles:");
+        out.vehicles(matches);
+        System.out.print("Enter vehicleId to book: ");
+        int vid = readInt(sc);
+        System.out.print("Enter number of tickets: ");
+        int qty = readInt(sc);
+        System.out.print("Enter travel date (yyyy-MM-dd, blank for today): ");
+        int day = readDay(svc, sc);
+        boolean listed = false;
+        for (Vehicle v : matches) if (v.vehicleId == vid) { listed = true; break; }
+        if (!listed) {
+            System.out.println("Vehicle not found among matches.");
+            return 0;
+        }
+        try {
+            BookingResult r = svc.bookVehicle(userId, vid, qty, day);
+            out.booking(r);
+            return r.charge;
+        } catch (ApplicationException ae) {
+            out.error(ae);
+            return 0;
+        }
+    }
+
+    // Hotel and/or transport in one cart: booked only if the single payment goes through.
+    private static void checkoutTrip(Checkout checkout, BookingService svc, int userId, Scanner sc, Presenter out) {
+        List<InventoryEngine.Reservation> items = new ArrayList<>();
+        System.out.print("Enter Hotel ID to book (0 to skip): ");
+        int hid = readInt(sc);
+        if (hid != 0) {
+            System.out.print("Enter number of rooms: ");
+            int rooms = readInt(sc);
+            System.out.print("Enter check-in date (yyyy-MM-dd, blank for today): ");
+            int day = readDay(svc, sc);
+            System.out.print("Enter number of nights: ");
+            items.add(InventoryEngine.Reservation.rooms(hid, day, readInt(sc), rooms));
+        }
+        System.out.print("Enter vehicleId to book (0 to skip): ");
+        int vid = readInt(sc);
+        if (vid != 0) {
+            System.out.print("Enter number of tickets: ");
+            int qty = readInt(sc);
+            System.out.print("Enter travel date (yyyy-MM-dd, blank for today): ");
+            items.add(InventoryEngine.Reservation.seats(vid, readDay(svc, sc), qty));
+        }
+        System.out.println("[1] Wallet\n[2] UPI/Card (simulate)");
+        System.out.print("Choose payment method: ");
+        Payment.Method method = readInt(sc) == 1 ? Payment.Method.WALLET : Payment.Method.EXTERNAL;
+        out.checkout(checkout.checkout(new Cart(userId, items, method)).join());
+    }
+
+    private static boolean pay(Payment payment, int userId, double amount, Scanner sc, Presenter out) {
+        System.out.printf("Bill: %.2f\n", amount);
+        System.out.println("[1] Wallet\n[2] UPI/Card (simulate)");
+        System.out.print("Choose payment method: ");
+        int choice = readInt(sc);
+        PaymentResult r = payment.makePayment(userId, amount, choice == 1 ? Payment.Method.WALLET : Payment.Method.EXTERNAL);
+        out.payment(r);
+        return r.succeeded();
+    }
+
     // ----- Admin-only helpers -----
-    private static void updateHotelPrice(List<User> users, int loggedInId, List<Hotel> hotels, Scanner sc) throws ApplicationException {
-        if (!isAdmin(users, loggedInId)) throw new ApplicationException(101, "User is not an admin");
+    private static void updateHotelPrice(SessionCache.Session session, BookingService svc, Scanner sc, Presenter out) throws ApplicationException {
+        session.requireAdmin(101);
         System.out.println("Admin verified.");
         System.out.print("Enter Hotel ID to update: ");
         int hid = readInt(sc);
-        Hotel found = null;
-        for (Hotel h : hotels) if (h.getHotelId() == hid) { found = h; break; }
+        Hotel found = svc.hotels().findById(hid);
         if (found == null) {
             System.out.println("Hotel not found.");
             return;
@@ -576,23 +6818,17 @@ public class TravelApp {
                 System.out.print("Invalid price. Try again: ");
             }
         }
-        found.setPricePerRoom(p);
+        svc.updateHotelPrice(hid, p);
         System.out.println("Updated hotel details:");
-        found.printHotel();
+        out.hotels(Collections.singletonList(found));
     }
 
-    private static void updateVehiclePrice(List<User> users, int loggedInId, List<Transportation> transports, Scanner sc) throws ApplicationException {
-        if (!isAdmin(users, loggedInId)) throw new ApplicationException(1002, "User is not an admin");
+    private static void updateVehiclePrice(SessionCache.Session session, BookingService svc, Scanner sc, Presenter out) throws ApplicationException {
+        session.requireAdmin(1002);
         System.out.println("Admin verified.");
         System.out.print("Enter vehicle ID to update: ");
         int vid = readInt(sc);
-        Vehicle found = null;
-        for (Transportation t : transports) {
-            for (Vehicle v : t.vehicles) {
-                if (v.vehicleId == vid) { found = v; break; }
-            }
-            if (found != null) break;
-        }
+        Vehicle found = svc.transports().findById(vid);
         if (found == null) {
             System.out.println("Vehicle not found.");
             return;
@@ -608,15 +6844,8 @@ public class TravelApp {
                 System.out.print("Invalid price. Try again: ");
             }
         }
-        found.price = p;
+        svc.updateVehiclePrice(vid, p);
         System.out.println("Updated vehicle details:");
-        found.printVehicleDetails();
-    }
-
-    private static boolean isAdmin(List<User> users, int id) {
-        for (User u : users) {
-            if (u.getUserId() == id && u instanceof Admin) return true;
-        }
-        return false;
+        out.vehicles(Collections.singletonList(found));
     }
 }